@@ -0,0 +1,174 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Checks the bytes allocated per line by the hot path against fixed budgets
+ * so garbage can't creep back into it unnoticed. Every check runs over a
+ * seeded {@link AsmGenerator} corpus, warms up and then measures the bytes
+ * the current thread allocated for one run. The exit status is 1 if any
+ * check is over its budget, so it can gate a build.
+ *
+ * @author Boris
+ *
+ */
+public class AllocationBudget
+{
+	public static final String	USAGE			= "usage: java AllocationBudget [--lines=n] [--seed=n] [--scale=x]";
+
+	// bytes per line, a bit above what the checks measure today
+	private static final double	LEX_BUDGET		= 0.5;
+	private static final double	CODE_BUDGET		= 0.5;
+	private static final double	ASSEMBLE_BUDGET	= 48;
+
+	private static final int	WARMUP_RUNS		= 5;
+
+	private static com.sun.management.ThreadMXBean	threads;
+
+	/**
+	 * Runs the checks.
+	 *
+	 * @param args
+	 *            - see {@link #USAGE}, the scale multiplies every budget.
+	 */
+	public static void main(String[] args)
+	{
+		int lines = 100_000;
+		long seed = 42;
+		double scale = 1;
+
+		try
+		{
+			for (String arg : args)
+			{
+				if (arg.startsWith("--lines="))
+				{
+					lines = Integer.parseInt(arg.substring("--lines=".length()));
+				}
+				else if (arg.startsWith("--seed="))
+				{
+					seed = Long.parseLong(arg.substring("--seed=".length()));
+				}
+				else if (arg.startsWith("--scale="))
+				{
+					scale = Double.parseDouble(arg.substring("--scale=".length()));
+				}
+				else
+				{
+					throw new IllegalArgumentException(arg);
+				}
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println(USAGE);
+			System.exit(3);
+		}
+
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+		{
+			System.err.println("This JVM can't measure allocated bytes.");
+			System.exit(2);
+		}
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		boolean passed = true;
+		for (AsmGenerator.Profile profile : AsmGenerator.Profile.values())
+		{
+			byte[] source = new AsmGenerator(profile, seed).generate(lines).getBytes(StandardCharsets.US_ASCII);
+			String name = profile.name().toLowerCase(Locale.ROOT);
+
+			passed &= check("lex." + name, LEX_BUDGET * scale, source, AllocationBudget::lex);
+			passed &= check("code." + name, CODE_BUDGET * scale, source, AllocationBudget::lookup);
+			passed &= check("assemble." + name, ASSEMBLE_BUDGET * scale, source, AllocationBudget::assemble);
+		}
+
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * A run over the corpus that returns the number of lines it handled.
+	 */
+	private interface Run
+	{
+		int run(byte[] source);
+	}
+
+	/**
+	 * Measures one run after warming up and prints the bytes per line.
+	 *
+	 * @return true if the run stayed within the budget
+	 */
+	private static boolean check(String name, double budget, byte[] source, Run run)
+	{
+		for (int i = 0; i < WARMUP_RUNS; i++)
+		{
+			run.run(source);
+		}
+
+		long id = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(id);
+		int lines = run.run(source);
+		long allocated = threads.getThreadAllocatedBytes(id) - before;
+
+		double perLine = (double) allocated / lines;
+		boolean passed = perLine <= budget;
+		System.out.printf(Locale.ROOT, "%-20s %10.3f B/line (budget %.3f) %s%n", name, perLine, budget,
+				passed ? "ok" : "OVER BUDGET");
+		return passed;
+	}
+
+	/**
+	 * Lexes every line.
+	 */
+	private static int lex(byte[] source)
+	{
+		Parser parser = new Parser(ByteBuffer.wrap(source));
+		while (parser.hasMoreCommands())
+		{
+			parser.advance();
+		}
+		return parser.getLineNumber();
+	}
+
+	/**
+	 * Lexes every line and looks up the mnemonics of the C instructions.
+	 */
+	private static int lookup(byte[] source)
+	{
+		Code code = Code.getInstance();
+		Parser parser = new Parser(ByteBuffer.wrap(source));
+		int sum = 0;
+		while (parser.hasMoreCommands())
+		{
+			parser.advance();
+			if (parser.getCommandType() == Parser.CommandType.C)
+			{
+				byte[] line = parser.getLine();
+				sum += code.getComp(line, parser.getCompStart(), parser.getCompEnd())
+						+ code.getDest(line, parser.getDestStart(), parser.getDestEnd())
+						+ code.getJump(line, parser.getJumpStart(), parser.getJumpEnd());
+			}
+		}
+		return sum == Integer.MIN_VALUE ? 0 : parser.getLineNumber();
+	}
+
+	/**
+	 * Runs both passes. This includes the program and symbol table, which grow
+	 * with the source, so its budget can't be zero.
+	 */
+	private static int assemble(byte[] source)
+	{
+		Parser parser = new Parser(ByteBuffer.wrap(source));
+		Program program = new Program();
+		SymbolTable symbolTable = new SymbolTable();
+		if (!Assembler.firstPass(parser, symbolTable, program, new Diagnostics()))
+		{
+			throw new IllegalStateException("generated corpus has errors");
+		}
+		Assembler.secondPass(program, symbolTable);
+		return parser.getLineNumber();
+	}
+}
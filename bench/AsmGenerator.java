@@ -0,0 +1,313 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Seeded generator of synthetic hack asm corpora for the JMH benchmarks in
+ * the jmh project and the {@link AllocationBudget}.
+ * The same profile, size and seed always give the same program, so runs on
+ * different machines or revisions measure the same input.
+ *
+ * @author Boris
+ *
+ */
+public class AsmGenerator
+{
+	/**
+	 * The kinds of programs to generate.
+	 */
+	enum Profile
+	{
+		/**
+		 * Output of a VM translator: stack pushes and pops, calls with return
+		 * labels and many distinct labels and static variables.
+		 */
+		VM,
+		/**
+		 * Screen drawing code: mostly constants, arithmetic on them and a few
+		 * loops over the SCREEN memory map.
+		 */
+		SCREEN,
+	}
+
+	private static final String[]	SEGMENTS	= { "LCL", "ARG", "THIS", "THAT" };
+	private static final String[]	COMPS		= { "D+A", "D-A", "D&A", "D|A", "D+M", "M-D", "A-1", "D+1", "!D",
+			"-D" };
+	private static final String[]	JUMPS		= { "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP" };
+	private static final int		CLASSES		= 16;
+	private static final int		FUNCTIONS	= 8;
+
+	private final Profile			profile;
+	private final Random			random;
+
+	private int						label;
+	// class * FUNCTIONS + function -> the function label was written
+	private final boolean[]			defined;
+
+	/**
+	 * @param profile
+	 *            - the kind of program to generate.
+	 * @param seed
+	 *            - the seed of the generator.
+	 */
+	public AsmGenerator(Profile profile, long seed)
+	{
+		this.profile = profile;
+		this.random = new Random(seed);
+		this.label = 0;
+		this.defined = new boolean[CLASSES * FUNCTIONS];
+	}
+
+	/**
+	 * Generates a program of about the given number of lines (it is rounded
+	 * up to the end of the last snippet, and of a VM program to the
+	 * functions called but not defined yet).
+	 *
+	 * @param lines
+	 *            - the number of lines to generate.
+	 * @return the hack asm source
+	 */
+	public String generate(int lines)
+	{
+		StringBuilder out = new StringBuilder(lines * 8);
+		try
+		{
+			generate(lines, out);
+		}
+		catch (IOException e)
+		{
+			// a StringBuilder never throws
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Generates a program of about the given number of lines into out.
+	 *
+	 * @param lines
+	 *            - the number of lines to generate.
+	 * @param out
+	 *            - where the source goes.
+	 * @throws IOException
+	 *             if out could not be written.
+	 */
+	public void generate(int lines, Appendable out) throws IOException
+	{
+		Lines counted = new Lines(out);
+		while (counted.count < lines)
+		{
+			if (profile == Profile.VM)
+			{
+				vmSnippet(counted);
+			}
+			else
+			{
+				screenSnippet(counted);
+			}
+		}
+
+		if (profile == Profile.VM)
+		{
+			// every call has a target, the ones left return to the address
+			// pushed by the call
+			for (int function = 0; function < defined.length; function++)
+			{
+				if (!defined[function])
+				{
+					function(counted, function / FUNCTIONS, function % FUNCTIONS);
+					counted.line("@SP");
+					counted.line("AM=M-1");
+					counted.line("A=M");
+					counted.line("0;JMP       // return");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes one VM command translated to hack asm.
+	 */
+	private void vmSnippet(Lines out) throws IOException
+	{
+		int kind = random.nextInt(10);
+		if (kind < 4)
+		{
+			// push segment i
+			String segment = SEGMENTS[random.nextInt(SEGMENTS.length)];
+			int index = random.nextInt(8);
+			out.line("// push " + segment + " " + index);
+			out.line("@" + index);
+			out.line("D=A");
+			out.line("@" + segment);
+			out.line("A=D+M");
+			out.line("D=M");
+			push(out);
+		}
+		else if (kind < 6)
+		{
+			// pop static i
+			out.line("@SP");
+			out.line("AM=M-1");
+			out.line("D=M");
+			out.line("@Class" + random.nextInt(CLASSES) + "." + random.nextInt(32));
+			out.line("M=D");
+		}
+		else if (kind < 8)
+		{
+			// comparison with its own labels
+			int id = label++;
+			out.line("@SP");
+			out.line("AM=M-1");
+			out.line("D=M");
+			out.line("A=A-1");
+			out.line("D=M-D");
+			out.line("@TRUE." + id);
+			out.line("D;" + JUMPS[random.nextInt(JUMPS.length - 1)]);
+			out.line("@SP");
+			out.line("A=M-1");
+			out.line("M=0");
+			out.line("@END." + id);
+			out.line("0;JMP");
+			out.line("(TRUE." + id + ")");
+			out.line("@SP");
+			out.line("A=M-1");
+			out.line("M=-1");
+			out.line("(END." + id + ")");
+		}
+		else
+		{
+			// call from a function of a class with a return label, the called
+			// function may be defined later
+			int id = label++;
+			int caller = random.nextInt(CLASSES);
+			out.line("@Class" + caller + ".f$ret." + id);
+			out.line("D=A");
+			push(out);
+			out.line("@Class" + random.nextInt(CLASSES) + ".f" + random.nextInt(FUNCTIONS));
+			out.line("0;JMP       // call");
+			out.line("(Class" + caller + ".f$ret." + id + ")");
+			if (random.nextInt(8) == 0)
+			{
+				function(out, random.nextInt(CLASSES), random.nextInt(FUNCTIONS));
+			}
+		}
+	}
+
+	/**
+	 * Writes the label of a function unless it was written already.
+	 */
+	private void function(Lines out, int owner, int function) throws IOException
+	{
+		if (!defined[owner * FUNCTIONS + function])
+		{
+			defined[owner * FUNCTIONS + function] = true;
+			out.line("(Class" + owner + ".f" + function + ")");
+		}
+	}
+
+	/**
+	 * Writes the push of D onto the stack.
+	 */
+	private static void push(Lines out) throws IOException
+	{
+		out.line("@SP");
+		out.line("A=M");
+		out.line("M=D");
+		out.line("@SP");
+		out.line("M=M+1");
+	}
+
+	/**
+	 * Writes a piece of screen drawing code.
+	 */
+	private void screenSnippet(Lines out) throws IOException
+	{
+		if (random.nextInt(16) == 0)
+		{
+			// fill a row of the screen
+			int id = label++;
+			out.line("@" + (16384 + random.nextInt(8192)));
+			out.line("D=A");
+			out.line("@addr");
+			out.line("M=D");
+			out.line("@32");
+			out.line("D=A");
+			out.line("@n");
+			out.line("M=D");
+			out.line("(ROW." + id + ")");
+			out.line("@addr");
+			out.line("A=M");
+			out.line("M=-1");
+			out.line("@addr");
+			out.line("M=M+1");
+			out.line("@n");
+			out.line("MD=M-1");
+			out.line("@ROW." + id);
+			out.line("D;JGT");
+		}
+		else
+		{
+			// a word of the bitmap at a constant address
+			out.line("@" + random.nextInt(32768));
+			out.line("D=A");
+			out.line("@" + random.nextInt(256));
+			out.line("D=" + COMPS[random.nextInt(COMPS.length)]);
+			out.line("@" + (16384 + random.nextInt(8192)));
+			out.line("M=D");
+		}
+	}
+
+	/**
+	 * Appendable wrapper counting the lines written.
+	 */
+	private static class Lines
+	{
+		private final Appendable	out;
+		int							count;
+
+		Lines(Appendable out)
+		{
+			this.out = out;
+			this.count = 0;
+		}
+
+		void line(String line) throws IOException
+		{
+			out.append(line).append('\n');
+			count++;
+		}
+	}
+
+	/**
+	 * Writes a corpus to a file.
+	 *
+	 * @param args
+	 *            - {@code vm|screen lines seed output.asm}
+	 */
+	public static void main(String[] args)
+	{
+		if (args.length != 4)
+		{
+			System.err.println("usage: java AsmGenerator vm|screen lines seed output.asm");
+			System.exit(3);
+		}
+
+		Profile profile = Profile.valueOf(args[0].toUpperCase());
+		int lines = Integer.parseInt(args[1]);
+		long seed = Long.parseLong(args[2]);
+
+		try (Writer out = new BufferedWriter(Files.newBufferedWriter(Paths.get(args[3]), StandardCharsets.US_ASCII)))
+		{
+			new AsmGenerator(profile, seed).generate(lines, out);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not write output file " + args[3]);
+			System.exit(2);
+		}
+	}
+}
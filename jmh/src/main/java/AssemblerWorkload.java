@@ -0,0 +1,139 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import jash.jmh.Workload;
+
+/**
+ * Runs the operations of the {@link jash.jmh.AssemblerBenchmark} on the
+ * assembler, from the default package so it can reach the package private
+ * passes.
+ *
+ * @author Boris
+ *
+ */
+public class AssemblerWorkload implements Workload
+{
+	private byte[]		source;
+
+	// the clean line and the comp, dest and jump spans of every C instruction
+	private byte[][]	cLines;
+	private int[][]		cSpans;
+
+	// every symbol of an A instruction or a label
+	private byte[][]	symbols;
+
+	// every constant of an A instruction
+	private int[]		constants;
+
+	@Override
+	public void setUp(String profile, int lines, long seed)
+	{
+		source = new AsmGenerator(AsmGenerator.Profile.valueOf(profile), seed).generate(lines)
+				.getBytes(StandardCharsets.US_ASCII);
+
+		List<byte[]> cLineList = new ArrayList<>();
+		List<int[]> cSpanList = new ArrayList<>();
+		List<byte[]> symbolList = new ArrayList<>();
+		List<Integer> constantList = new ArrayList<>();
+
+		Parser parser = new Parser(ByteBuffer.wrap(source));
+		while (parser.hasMoreCommands())
+		{
+			parser.advance();
+			if (parser.getCommandType() == Parser.CommandType.C)
+			{
+				cLineList.add(parser.getCleanLine().getBytes(StandardCharsets.US_ASCII));
+				cSpanList.add(new int[] { parser.getCompStart(), parser.getCompEnd(), parser.getDestStart(),
+						parser.getDestEnd(), parser.getJumpStart(), parser.getJumpEnd() });
+			}
+			else if (parser.getCommandType() != Parser.CommandType.NONE)
+			{
+				String symbol = parser.getSymbol();
+				if (Character.isDigit(symbol.charAt(0)))
+				{
+					constantList.add(Integer.parseInt(symbol));
+				}
+				else
+				{
+					symbolList.add(symbol.getBytes(StandardCharsets.US_ASCII));
+				}
+			}
+		}
+
+		cLines = cLineList.toArray(new byte[0][]);
+		cSpans = cSpanList.toArray(new int[0][]);
+		symbols = symbolList.toArray(new byte[0][]);
+		constants = new int[constantList.size()];
+		for (int i = 0; i < constants.length; i++)
+		{
+			constants[i] = constantList.get(i);
+		}
+	}
+
+	@Override
+	public void advance(Blackhole blackhole)
+	{
+		Parser parser = new Parser(ByteBuffer.wrap(source));
+		while (parser.hasMoreCommands())
+		{
+			parser.advance();
+			blackhole.consume(parser.getCommandType());
+			blackhole.consume(parser.getSymbolEnd());
+		}
+	}
+
+	@Override
+	public void lookupCodes(Blackhole blackhole)
+	{
+		Code code = Code.getInstance();
+		for (int i = 0; i < cLines.length; i++)
+		{
+			byte[] line = cLines[i];
+			int[] span = cSpans[i];
+			blackhole.consume(code.getComp(line, span[0], span[1]));
+			blackhole.consume(code.getDest(line, span[2], span[3]));
+			blackhole.consume(code.getJump(line, span[4], span[5]));
+		}
+	}
+
+	@Override
+	public void addAndLookupSymbols(Blackhole blackhole)
+	{
+		SymbolTable table = new SymbolTable();
+		for (int i = 0; i < symbols.length; i++)
+		{
+			blackhole.consume(table.lookupOrInsert(symbols[i], 0, symbols[i].length, i));
+		}
+		for (byte[] symbol : symbols)
+		{
+			blackhole.consume(table.getAddress(symbol, 0, symbol.length));
+		}
+	}
+
+	@Override
+	public void decimalToBinary(Blackhole blackhole)
+	{
+		for (int constant : constants)
+		{
+			blackhole.consume(Code.decimalToBinary(constant));
+		}
+	}
+
+	@Override
+	public void assemble(Blackhole blackhole)
+	{
+		Parser parser = new Parser(ByteBuffer.wrap(source));
+		Program program = new Program();
+		SymbolTable symbolTable = new SymbolTable();
+		if (!Assembler.firstPass(parser, symbolTable, program, new Diagnostics()))
+		{
+			throw new IllegalStateException("generated corpus has errors");
+		}
+		blackhole.consume(Assembler.secondPass(program, symbolTable));
+		blackhole.consume(program);
+	}
+}
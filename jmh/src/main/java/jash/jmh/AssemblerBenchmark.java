@@ -0,0 +1,83 @@
+package jash.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the hot path of the assembler over seeded AsmGenerator
+ * corpora, a label heavy VM translator output and constant heavy screen
+ * code. Every operation runs over the whole corpus, so the scores are the
+ * time of one pass over it, and every result goes to a {@link Blackhole}.
+ * Other sizes run with the JMH option {@code -p lines=10000,10000000}.
+ *
+ * @author Boris
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class AssemblerBenchmark
+{
+	@Param({ "VM", "SCREEN" })
+	public String	profile;
+
+	@Param({ "100000" })
+	public int		lines;
+
+	@Param({ "42" })
+	public long		seed;
+
+	private Workload	workload;
+
+	@Setup
+	public void setUp() throws ReflectiveOperationException
+	{
+		workload = Workload.load();
+		workload.setUp(profile, lines, seed);
+	}
+
+	@Benchmark
+	public void parserAdvance(Blackhole blackhole)
+	{
+		workload.advance(blackhole);
+	}
+
+	@Benchmark
+	public void codeLookup(Blackhole blackhole)
+	{
+		workload.lookupCodes(blackhole);
+	}
+
+	@Benchmark
+	public void symbolTableAddLookup(Blackhole blackhole)
+	{
+		workload.addAndLookupSymbols(blackhole);
+	}
+
+	@Benchmark
+	public void decimalToBinary(Blackhole blackhole)
+	{
+		workload.decimalToBinary(blackhole);
+	}
+
+	@Benchmark
+	public void firstAndSecondPass(Blackhole blackhole)
+	{
+		workload.assemble(blackhole);
+	}
+}
@@ -0,0 +1,64 @@
+package jash.jmh;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The operations of the assembler the {@link AssemblerBenchmark} measures,
+ * each over a whole corpus. JMH only runs benchmarks in a named package and
+ * a named package can't refer to the assembler in the default package, so
+ * the implementation, {@code AssemblerWorkload}, is in the default package
+ * and loaded by name once per trial.
+ *
+ * @author Boris
+ *
+ */
+public interface Workload
+{
+	/**
+	 * Generates the corpus and extracts what the operations run over.
+	 *
+	 * @param profile
+	 *            - the name of the AsmGenerator profile.
+	 * @param lines
+	 *            - the number of lines to generate.
+	 * @param seed
+	 *            - the seed of the generator.
+	 */
+	void setUp(String profile, int lines, long seed);
+
+	/**
+	 * Lexes every line with Parser.advance.
+	 */
+	void advance(Blackhole blackhole);
+
+	/**
+	 * Translates the mnemonics of every C instruction with the Code lookups.
+	 */
+	void lookupCodes(Blackhole blackhole);
+
+	/**
+	 * Adds every symbol to a new SymbolTable and looks all of them up.
+	 */
+	void addAndLookupSymbols(Blackhole blackhole);
+
+	/**
+	 * Converts the value of every constant A instruction with
+	 * Code.decimalToBinary.
+	 */
+	void decimalToBinary(Blackhole blackhole);
+
+	/**
+	 * Runs the first and the second pass.
+	 */
+	void assemble(Blackhole blackhole);
+
+	/**
+	 * @return a new {@code AssemblerWorkload}
+	 * @throws ReflectiveOperationException
+	 *             if it isn't on the class path.
+	 */
+	static Workload load() throws ReflectiveOperationException
+	{
+		return (Workload) Class.forName("AssemblerWorkload").getDeclaredConstructor().newInstance();
+	}
+}
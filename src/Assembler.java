@@ -1,12 +1,21 @@
 
 //Author info here
 //TODO: don't forget to document each method in all classes!
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
 
 import exceptions.AssemblerException;
-import exceptions.AssemblerExceptionBuilder;
+import exceptions.ErrorCode;
 
 public class Assembler
 {
@@ -23,17 +32,80 @@ public class Assembler
 	// close output file stream
 	public static void main(String[] args)
 	{
-		String inputFileName, outputFileName;
-		PrintWriter outputFile = null; // keep compiler happy
-		SymbolTable symbolTable;
+		String inputFileName;
 		// TODO remove following line?
 		// int romAddress, ramAddress;
 
+		Options options = null; // keep compiler happy
+		try
+		{
+			options = Options.parse(args);
+		}
+		catch (IllegalArgumentException ex)
+		{
+			System.err.println(ex.getMessage());
+			System.err.println(Options.USAGE);
+			System.exit(3); // 3 = bad arguments
+		}
+
+		if (options.getClientSocket() != null)
+		{
+			System.exit(Daemon.send(options.getClientSocket(), args));
+		}
+
+		if (options.getDaemonSocket() != null)
+		{
+			try
+			{
+				Daemon.serve(options.getDaemonSocket(), options.getJobs());
+			}
+			catch (UncheckedIOException ex)
+			{
+				System.err.println("Translation Codes Not Found.");
+				System.exit(1); // 1 = codes not found
+			}
+			catch (IOException ex)
+			{
+				System.err.println("Could not open socket " + options.getDaemonSocket() + ": " + ex.getMessage());
+				System.exit(2); // 2 = could not open file
+			}
+			return;
+		}
+
+		if (options.isWatch())
+		{
+			try
+			{
+				Watch.run(options);
+			}
+			catch (UncheckedIOException ex)
+			{
+				System.err.println("Translation Codes Not Found.");
+				System.exit(1); // 1 = codes not found
+			}
+			catch (IOException ex)
+			{
+				System.err.println("Could not watch the input files: " + ex.getMessage());
+				System.exit(2); // 2 = could not open file
+			}
+			return;
+		}
+
+		if (options.getLinkOutput() != null)
+		{
+			System.exit(Linker.run(options) ? 0 : 4); // 4 = some files failed
+		}
+
+		if (options.isBatch())
+		{
+			System.exit(Batch.run(options) ? 0 : 4); // 4 = some files failed
+		}
+
 		// get input file name from command line or console input
-		if (args.length == 1)
+		if (options.getInputFileName() != null)
 		{
-			System.out.println("command line arg = " + args[0]);
-			inputFileName = args[0];
+			System.out.println("command line arg = ".concat(options.getInputFileName()));
+			inputFileName = options.getInputFileName();
 		}
 		else
 		{
@@ -46,30 +118,322 @@ public class Assembler
 			keyboard.close();
 		}
 
+		int status = assemble(inputFileName, options, System.out, System.err);
+		if (status != 0)
+		{
+			System.exit(status);
+		}
+	}
+
+	/**
+	 * Assembles one file the way the command line does, printing to the given
+	 * streams so the {@link Daemon} can do the same on behalf of a client.
+	 * 
+	 * @param inputFileName
+	 *            - the file to assemble.
+	 * @param options
+	 *            - the options of the run.
+	 * @param out
+	 *            - where the report goes.
+	 * @param err
+	 *            - where the errors go.
+	 * @return the exit status of the command line
+	 */
+	static int assemble(String inputFileName, Options options, PrintStream out, PrintStream err)
+	{
+		String outputFileName;
+		WordWriter outputFile = null; // keep compiler happy
+		Assembly assembly = null; // keep compiler happy
+
 		// TODO check if inputFile even exists
 
 		String[] pathSections = dissectPath(inputFileName);
 
-		outputFileName = pathSections[0] + pathSections[1] + ".hack";
+		outputFileName = pathSections[0].concat(pathSections[1]).concat(options.getFormat().getExtension());
 
 		try
 		{
-			outputFile = new PrintWriter(outputFileName);
+			Code.getInstance();
 		}
-		catch (FileNotFoundException ex)
+		catch (UncheckedIOException ex)
 		{
-			System.err.println("Could not open output file " + outputFileName);
-			System.err.println("Run program again, make sure you have write permissions, etc.");
-			System.exit(0);
+			err.println("Translation Codes Not Found.");
+			return 1; // 1 = codes not found
+		}
+
+		Stats stats = new Stats(inputFileName, options.isStats());
+
+		// an unchanged file is copied from the cache instead, unless the file
+		// is too large to hold
+		BuildCache cache = options.isExternal() ? null : BuildCache.open(options, err);
+		byte[] source = null;
+		String cacheKey = null;
+		if (cache != null)
+		{
+			try
+			{
+				source = Files.readAllBytes(Paths.get(inputFileName));
+			}
+			catch (IOException ex)
+			{
+				err.println("Could not open file \"" + inputFileName + "\".");
+				return 2; // 2 = could not open file
+			}
+
+			cacheKey = cache.key(source, options.getFormat(), options.getOptimizer());
+			if (cache.fetch(cacheKey, Paths.get(outputFileName)))
+			{
+				stats.countCacheHit();
+				printStats(stats, out);
+				return 0;
+			}
 		}
 
-		symbolTable = new SymbolTable();
-		if (firstPass(inputFileName, symbolTable))
+		try
 		{
-			secondPass(inputFileName, symbolTable, outputFile);
+			outputFile = new WordWriter(FileChannel.open(Paths.get(outputFileName),
+					StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING),
+					options.getFormat());
+		}
+		catch (IOException ex)
+		{
+			err.println("Could not open output file " + outputFileName);
+			err.println("Run program again, make sure you have write permissions, etc.");
+			return 0;
 		}
 
+		if (options.isPipelined() || options.isExternal())
+		{
+			FileChannel input;
+			try
+			{
+				input = FileChannel.open(Paths.get(inputFileName), StandardOpenOption.READ);
+			}
+			catch (IOException ex)
+			{
+				err.println("Could not open file \"" + inputFileName + "\".");
+				return 2; // 2 = could not open file
+			}
+
+			if (options.isPipelined())
+			{
+				try
+				{
+					assembly = assemblePipelined(input, outputFile, options.getMaxErrors(), stats, err);
+					cache(cache, cacheKey, assembly, outputFileName);
+				}
+				catch (UncheckedIOException ex)
+				{
+					err.println("Could not open file \"" + inputFileName + "\".");
+					return 2; // 2 = could not open file
+				}
+				catch (IOException ex)
+				{
+					err.println("Could not write output file " + outputFileName);
+				}
+				catch (RuntimeException ex)
+				{
+					err.println("Could not assemble \"" + inputFileName + "\": " + ex);
+					return 1; // 1 = the assembler failed
+				}
+			}
+			else
+			{
+				assembleExternal(input, outputFileName, outputFile, options, stats, err);
+			}
+			printStats(stats, out);
+			return 0;
+		}
+
+		try
+		{
+			if (options.isParallel())
+			{
+				assembly = assembleParallel(inputFileName, options.getJobs(), options.getMaxErrors(), stats);
+			}
+			else
+			{
+				Parser parser = source != null ? new Parser(ByteBuffer.wrap(source)) : new Parser(inputFileName);
+				assembly = options.isSinglePass() ? SinglePass.assemble(parser, options.getMaxErrors(), stats)
+						: Assembly.assemble(parser, options.getMaxErrors(), stats, options.getOptimizer());
+			}
+		}
+		catch (IOException | UncheckedIOException ex)
+		{
+			err.println("Could not open file \"" + inputFileName + "\".");
+			return 2; // 2 = could not open file
+		}
+
+		printDiagnostics(assembly, err);
+		printSavings(assembly.getSavings(), "", out);
+
+		try
+		{
+			stats.begin(Stats.Phase.OUTPUT);
+			if (assembly.succeeded())
+			{
+				outputFile.write(assembly.getWordBuffer());
+			}
+
+			outputFile.close();
+			stats.end(-1, assembly.getWordBuffer().remaining());
+			stats.countBytesWritten(outputFile.getBytesWritten());
+			cache(cache, cacheKey, assembly, outputFileName);
+		}
+		catch (IOException ex)
+		{
+			err.println("Could not write output file " + outputFileName);
+		}
+
+		printStats(stats, out);
+		return 0;
+	}
+
+	/**
+	 * Stores the output in the cache if there is one and the assembly
+	 * succeeded, then trims the cache it has grown.
+	 */
+	private static void cache(BuildCache cache, String key, Assembly assembly, String outputFileName)
+	{
+		if (cache != null && assembly.succeeded() && cache.store(key, Paths.get(outputFileName)))
+		{
+			cache.trim();
+		}
+	}
+
+	/**
+	 * Prints the JSON summary if --stats was given.
+	 */
+	private static void printStats(Stats stats, PrintStream out)
+	{
+		if (stats.isEnabled())
+		{
+			out.println(stats.toJson());
+		}
+	}
+
+	/**
+	 * Assembles the file with the {@link Pipeline}, which writes the output
+	 * while the second pass is still running.
+	 * 
+	 * @return the assembly
+	 * @throws IOException
+	 *             if the output could not be written.
+	 * @throws UncheckedIOException
+	 *             if the input could not be read.
+	 * @throws RuntimeException
+	 *             if a stage of the pipeline failed otherwise.
+	 */
+	private static Assembly assemblePipelined(FileChannel input, WordWriter outputFile, int maxErrors, Stats stats,
+			PrintStream err) throws IOException
+	{
+		Assembly assembly = Pipeline.assemble(input, outputFile, maxErrors, stats);
+		printDiagnostics(assembly, err);
+
 		outputFile.close();
+		stats.countBytesWritten(outputFile.getBytesWritten());
+		return assembly;
+	}
+
+	/**
+	 * Assembles the file with {@link ExternalAssembly}, which keeps only the
+	 * symbols in memory.
+	 */
+	private static void assembleExternal(FileChannel input, String outputFileName, WordWriter outputFile,
+			Options options, Stats stats, PrintStream err)
+	{
+		try
+		{
+			stats.begin(Stats.Phase.ASSEMBLE);
+			ExternalAssembly assembly = ExternalAssembly.assemble(input, outputFile, options.getMaxErrors(),
+					options.getExternalBudget());
+			printDiagnostics(assembly.getDiagnostics(), assembly.isTruncated(), err);
+
+			outputFile.close();
+			stats.end(assembly.getLineCount(), assembly.size());
+			stats.count(assembly.getLineCount(), assembly.size(), assembly.getLabelCount(),
+					assembly.succeeded() ? assembly.getSymbolTable().size() - assembly.getLabelCount() : -1);
+			stats.countBytesWritten(outputFile.getBytesWritten());
+		}
+		catch (IOException ex)
+		{
+			err.println("Could not assemble into output file " + outputFileName + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Prints the errors of the assembly, noting if it stopped at the cap.
+	 */
+	private static void printDiagnostics(Assembly assembly, PrintStream err)
+	{
+		printDiagnostics(assembly.getDiagnostics(), assembly.isTruncated(), err);
+	}
+
+	/**
+	 * Prints the errors, noting if they stopped at the cap.
+	 */
+	private static void printDiagnostics(List<AssemblerException> errors, boolean truncated, PrintStream err)
+	{
+		for (AssemblerException e : errors)
+		{
+			err.println(e.parseFailDescriptor());
+		}
+
+		if (truncated)
+		{
+			err.println("Stopped after " + errors.size() + " errors.");
+		}
+	}
+
+	/**
+	 * Prints what the optimizer saved, if the program was optimized.
+	 * 
+	 * @param savings
+	 *            - the savings or null.
+	 * @param prefix
+	 *            - put in front of the line.
+	 * @param out
+	 *            - where the line goes.
+	 */
+	static void printSavings(Peephole.Savings savings, String prefix, PrintStream out)
+	{
+		if (savings != null && savings.getCycles() < 0)
+		{
+			out.printf("%soptimized away %d words at the cost of about %d cycles%n", prefix, savings.getWords(),
+					-savings.getCycles());
+		}
+		else if (savings != null)
+		{
+			out.printf("%soptimized away %d words and about %d cycles%n", prefix, savings.getWords(),
+					savings.getCycles());
+		}
+	}
+
+	/**
+	 * Maps the whole file and assembles it with {@link ParallelAssembly}.
+	 * Files too large for one mapping are assembled sequentially.
+	 */
+	private static Assembly assembleParallel(String inputFileName, int jobs, int maxErrors, Stats stats)
+			throws IOException
+	{
+		try (FileChannel file = FileChannel.open(Paths.get(inputFileName), StandardOpenOption.READ))
+		{
+			if (file.size() > Integer.MAX_VALUE)
+			{
+				return Assembly.assemble(new Parser(inputFileName), maxErrors, stats);
+			}
+
+			ByteBuffer source = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+			ForkJoinPool pool = new ForkJoinPool(jobs);
+			try
+			{
+				return ParallelAssembly.assemble(source, pool, maxErrors, stats);
+			}
+			finally
+			{
+				pool.shutdown();
+			}
+		}
 	}
 
 	// TODO: march through the source code without generating any code
@@ -77,14 +441,19 @@ public class Assembler
 	// add the pair <LABEL, n> to the symbol table
 	// n = romAddress which you should keep track of as you go through each line
 	// HINT: when should rom address increase? What kind of commands?
-	private static boolean firstPass(String inputFileName, SymbolTable symbolTable)
+	// Every A and C instruction is appended to the program here so the second
+	// pass never reads the source again. C instructions and numeric A
+	// instructions are fully encoded, symbolic A instructions keep a symbol id.
+	// Errors are collected until the diagnostics are full, then the rest of
+	// the source is skipped.
+	static boolean firstPass(Parser parser, SymbolTable symbolTable, Program program, Diagnostics diagnostics)
 	{
-		Parser parser = new Parser(inputFileName);
+		Code code = Code.getInstance();
 		int curROM = 0;
 
 		boolean noParseErrors = true;
 
-		while (parser.hasMoreCommands())
+		while (!diagnostics.isFull() && parser.hasMoreCommands())
 		{
 			try
 			{
@@ -93,13 +462,19 @@ public class Assembler
 				switch (parser.getCommandType())
 				{
 					case LABEL:
-						if (!symbolTable.contains(parser.getSymbol()))
+						// the first definition wins, invalid names are ignored
+						if (SymbolTable.isvalidName(parser.getLine(), parser.getSymbolStart(), parser.getSymbolEnd()))
 						{
-							symbolTable.addEntry(parser.getSymbol(), curROM);
+							symbolTable.lookupOrInsert(parser.getLine(), parser.getSymbolStart(),
+									parser.getSymbolEnd(), curROM);
 						}
 						break;
 					case A:
+						addAInstruction(parser, symbolTable, program);
+						curROM++;
+						break;
 					case C:
+						addCInstruction(parser, code, program);
 						curROM++;
 						break;
 					default:
@@ -108,148 +483,201 @@ public class Assembler
 			}
 			catch (AssemblerException e)
 			{
-				System.err.println(e.parseFailDescriptor());
+				diagnostics.add(e);
 				noParseErrors = false;
 			}
 		}
 
+		if (diagnostics.isFull() && parser.hasMoreCommands())
+		{
+			diagnostics.truncate();
+			parser.close();
+		}
+
 		return noParseErrors;
 	}
 
-	// TODO: march again through the source code and process each line:
-	// if the line is a c-instruction, simple (translate)
-	// if the line is @xxx where xxx is a number, simple (translate)
-	// if the line is @xxx and xxx is a symbol, look it up in the symbol
+	/**
+	 * Appends the A instruction the parser is at to the program. Constants are
+	 * encoded right away while symbols are only validated and get resolved in
+	 * the second pass.
+	 */
+	private static void addAInstruction(Parser parser, SymbolTable symbolTable, Program program)
+	{
+		int word = encodeA(parser);
+		if (word >= 0)
+		{
+			program.addWord((short) word, parser.getLineNumber());
+		}
+		else
+		{
+			program.addSymbol(parser.getLine(), parser.getSymbolStart(), parser.getSymbolEnd(),
+					parser.getLineNumber());
+		}
+	}
+
+	/**
+	 * Encodes the A instruction the parser is at if it is a constant, a symbol
+	 * is only validated.
+	 * 
+	 * @return the word of a constant or -1 for a valid symbol
+	 * @throws AssemblerException
+	 *             if the constant is too large or the symbol is invalid.
+	 */
+	static int encodeA(Parser parser)
+	{
+		byte[] line = parser.getLine();
+		int end = parser.getSymbolEnd();
+
+		// scan the digits once, saturating past 16 bits so it can't overflow
+		int num = 0;
+		int i = parser.getSymbolStart();
+		for (; i < end && line[i] >= '0' && line[i] <= '9'; i++)
+		{
+			if (num < (1 << 16))
+			{
+				num = num * 10 + (line[i] - '0');
+			}
+		}
+
+		if (i == end)
+		{
+			if (num >= (1 << 16))
+			{
+				throw parser.problem(parser.getSymbolStart(), end)
+						.as(ErrorCode.CONSTANT_RANGE)
+						.build();
+			}
+
+			return num & 0x7FFF;
+		}
+
+		// every symbol in the table is valid so only the name needs checking
+		int start = parser.getSymbolStart();
+		if (!SymbolTable.isvalidName(line, start, end))
+		{
+			// line[start] is safe since an empty symbol is a parse error
+			if (!SymbolTable.isFirstChar(line[start]))
+			{
+				throw parser.problem(start, start + 1)
+						.as(ErrorCode.SYMBOL_FIRST_CHAR)
+						.build();
+			}
+			else
+			{
+				int bad = start + 1;
+				while (SymbolTable.isRestChar(line[bad]))
+				{
+					bad++;
+				}
+
+				throw parser.problem(bad, bad + 1)
+						.as(ErrorCode.SYMBOL_REST_CHAR)
+						.build();
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Encodes the C instruction the parser is at and appends it to the
+	 * program.
+	 */
+	private static void addCInstruction(Parser parser, Code code, Program program)
+	{
+		program.addWord(encodeC(parser, code), parser.getLineNumber());
+	}
+
+	/**
+	 * Encodes the C instruction the parser is at.
+	 * 
+	 * @return the machine word
+	 * @throws AssemblerException
+	 *             if a mnemonic is illegal.
+	 */
+	static short encodeC(Parser parser, Code code)
+	{
+		byte[] line = parser.getLine();
+		int comp = code.getComp(line, parser.getCompStart(), parser.getCompEnd());
+		int dest = code.getDest(line, parser.getDestStart(), parser.getDestEnd());
+		int jump = code.getJump(line, parser.getJumpStart(), parser.getJumpEnd());
+
+		if (comp < 0)
+		{
+			throw parser.problem(parser.getCompStart(), parser.getCompEnd())
+					.as(ErrorCode.ILLEGAL_COMP)
+					.build();
+		}
+		else if (dest < 0)
+		{
+			throw parser.problem(parser.getDestStart(), parser.getDestEnd())
+					.as(ErrorCode.ILLEGAL_DEST)
+					.build();
+		}
+		else if (jump < 0)
+		{
+			throw parser.problem(parser.getJumpStart(), parser.getJumpEnd())
+					.as(ErrorCode.ILLEGAL_JUMP)
+					.build();
+		}
+
+		return Code.encodeC(comp, dest, jump);
+	}
+
+	// TODO: march through the program built by the first pass:
+	// if the instruction is already encoded, simple (output)
+	// if the instruction is @xxx and xxx is a symbol, look it up in the symbol
 	// table and proceed as follows:
 	// If the symbol is found, replace it with its numeric value and
 	// and complete the commands translation
 	// If the symbol is not found, then it must represent a new variable:
 	// add the pair <xxx, n> to the symbol table, where n is the next
 	// available RAM address, and complete the commands translation
-	// HINT: when should rom address increase? What should ram address start
-	// at? When should it increase? What do you do with L commands and No
-	// commands?
-	private static void secondPass(String inputFileName, SymbolTable symbolTable, PrintWriter outputFile)
+	// Symbols are resolved once per symbol id, later references reuse the
+	// address. The first pass already reported every error so nothing can
+	// fail here. The resolved words are stored back into the program.
+	// Returns the number of variables.
+	static int secondPass(Program program, SymbolTable symbolTable)
 	{
-		Parser parser = new Parser(inputFileName);
-		Code code = Code.getInstance();
-		int nextRAM = 16;
+		int[] addresses = new int[program.getSymbolCount()];
+		Arrays.fill(addresses, -1);
 
-		try
+		return secondPass(program, symbolTable, addresses, 16, 0, program.size()) - 16;
+	}
+
+	/**
+	 * Runs the second pass over the instructions {@code [from, to)} so it can
+	 * be done in pieces. The addresses (one per symbol id, -1 while unknown)
+	 * and the next free RAM address carry over from piece to piece.
+	 * 
+	 * @return the next free RAM address after the piece
+	 */
+	static int secondPass(Program program, SymbolTable symbolTable, int[] addresses, int nextRAM,
+			int from, int to)
+	{
+		for (int i = from; i < to; i++)
 		{
-			while (parser.hasMoreCommands())
-			{
-				parser.advance();
+			int symbol = program.getSymbol(i);
 
-				switch (parser.getCommandType())
+			if (symbol != Program.NO_SYMBOL)
+			{
+				if (addresses[symbol] < 0)
 				{
-					case A:
-						if (symbolTable.contains(parser.getSymbol()))
-						{
-							outputFile.write('0');
-							outputFile.write(Code.decimalToBinary(symbolTable.getAddress(parser.getSymbol())));
-						}
-						else if (parser.getSymbol().chars().allMatch(Character::isDigit))
-						{
-							int num = Integer.parseInt(parser.getSymbol());
-
-							if (num < 0 || num >= (1 << 16))
-							{
-								throw AssemblerExceptionBuilder.start()
-										.at(parser.getLineNumber())
-										.in(parser.getRawLine().trim())
-										.as(String.format("Constant exceeded 15 bits (0 to %d inclusive)",
-												(1 << 16) - 1))
-										.build();
-							}
-							else
-							{
-								outputFile.write('0');
-								outputFile.write(Code.decimalToBinary(num));
-							}
-						}
-						else
-						{
-							if (!symbolTable.addEntry(parser.getSymbol(), nextRAM))
-							{
-								// charAt(0) is safe since an empty symbol
-								// parsed in the first pass would stop the
-								// second pass
-								if (!symbolTable.FIRST_CHAR.test(parser.getSymbol().charAt(0)))
-									throw AssemblerExceptionBuilder.start()
-											.at(parser.getLineNumber())
-											.in(parser.getRawLine().trim())
-											.as("Symbol's first character mustbe a letter"
-													+ " or a character from \"_.$:\"")
-											.build();
-								else
-								{
-									throw AssemblerExceptionBuilder.start()
-											.at(parser.getLineNumber())
-											.in(parser.getRawLine().trim())
-											.as("Symbol's non first characters must be a letter"
-													+ ", a character from \"_.$:\", or a digit")
-											.build();
-								}
-							}
-							else
-							{
-								outputFile.write('0');
-								outputFile.write(Code.decimalToBinary(nextRAM));
-								nextRAM++;
-							}
-
-						}
-
-						outputFile.write('\n');
-						break;
-					case C:
-						String compBinary = code.getComp(parser.getCompMnemonic());
-						String destBinary = code.getDest(parser.getDestMnemonic());
-						String jumpBinary = code.getJump(parser.getJumpMnemonic());
-
-						if (compBinary == null)
-						{
-							throw AssemblerExceptionBuilder.start()
-									.at(parser.getLineNumber())
-									.in(parser.getRawLine().trim())
-									.as("Illegal Computation mnemonic")
-									.build();
-						}
-						else if (destBinary == null)
-						{
-							throw AssemblerExceptionBuilder.start()
-									.at(parser.getLineNumber())
-									.in(parser.getRawLine().trim())
-									.as("Illegal Destination mnemonic")
-									.build();
-						}
-						else if (jumpBinary == null)
-						{
-							throw AssemblerExceptionBuilder.start()
-									.at(parser.getLineNumber())
-									.in(parser.getRawLine().trim())
-									.as("Illegal Jump mnemonic")
-									.build();
-						}
-						else
-						{
-							outputFile.write("111");
-							outputFile.write(compBinary);
-							outputFile.write(destBinary);
-							outputFile.write(jumpBinary);
-							outputFile.write('\n');
-						}
-						break;
-					default:
-						break;
+					byte[] name = program.getSymbolKey(symbol);
+					addresses[symbol] = symbolTable.lookupOrInsert(name, 0, name.length, nextRAM);
+					if (addresses[symbol] < 0)
+					{
+						addresses[symbol] = nextRAM;
+						nextRAM++;
+					}
 				}
+
+				program.setWord(i, (short) (addresses[symbol] & 0x7FFF));
 			}
 		}
-		catch (AssemblerException e)
-		{
-			System.err.println(e.parseFailDescriptor());
-		}
+
+		return nextRAM;
 	}
 
 	/**
@@ -281,7 +709,7 @@ public class Assembler
 			nameStartIndex = 0;
 		}
 
-		int nameEndIndex = filePath.indexOf('.');
+		int nameEndIndex = filePath.indexOf('.', nameStartIndex);
 		if (nameEndIndex < 0)
 		{
 			nameEndIndex = filePath.length();
@@ -296,4 +724,4 @@ public class Assembler
 		return dissectedPaths;
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.List;
+
+import exceptions.AssemblerException;
+
+/**
+ * The result of assembling a hack asm program in memory, for embedding the
+ * assembler instead of running {@link Assembler#main(String[])}. Assembling
+ * never touches the file system (other than the one time loading of the
+ * translation codes by {@link Code}), never writes to the console and never
+ * exits the JVM, errors are returned as diagnostics instead. Every assembly
+ * has its own state so any number can run concurrently.
+ * 
+ * @author Boris
+ *
+ */
+public class Assembly
+{
+	private final Program					program;
+	private final SymbolTable				symbolTable;
+	private final Diagnostics				diagnostics;
+	private final Peephole.Savings			savings;
+
+	Assembly(Program program, SymbolTable symbolTable, Diagnostics diagnostics)
+	{
+		this(program, symbolTable, diagnostics, null);
+	}
+
+	Assembly(Program program, SymbolTable symbolTable, Diagnostics diagnostics, Peephole.Savings savings)
+	{
+		this.program = program;
+		this.symbolTable = symbolTable;
+		this.diagnostics = diagnostics;
+		this.savings = savings;
+	}
+
+	/**
+	 * Assembles the lines the parser has left.
+	 * 
+	 * @param parser
+	 *            - the parser to read the program from.
+	 * @return the assembled program
+	 */
+	public static Assembly assemble(Parser parser)
+	{
+		return assemble(parser, Diagnostics.UNLIMITED);
+	}
+
+	/**
+	 * Assembles the lines the parser has left, stopping once the given number
+	 * of errors is found.
+	 * 
+	 * @param parser
+	 *            - the parser to read the program from.
+	 * @param maxErrors
+	 *            - the most errors to report, at least 1.
+	 * @return the assembled program
+	 */
+	public static Assembly assemble(Parser parser, int maxErrors)
+	{
+		return assemble(parser, maxErrors, Stats.disabled());
+	}
+
+	/**
+	 * Assembles the lines the parser has left, timing and counting both passes
+	 * in the stats.
+	 * 
+	 * @param parser
+	 *            - the parser to read the program from.
+	 * @param maxErrors
+	 *            - the most errors to report, at least 1.
+	 * @param stats
+	 *            - where the passes are recorded.
+	 * @return the assembled program
+	 */
+	public static Assembly assemble(Parser parser, int maxErrors, Stats stats)
+	{
+		return assemble(parser, maxErrors, stats, null);
+	}
+
+	/**
+	 * Assembles the lines the parser has left, optimizing the program between
+	 * the passes if there is an optimizer.
+	 * 
+	 * @param parser
+	 *            - the parser to read the program from.
+	 * @param maxErrors
+	 *            - the most errors to report, at least 1.
+	 * @param stats
+	 *            - where the passes are recorded.
+	 * @param optimizer
+	 *            - the optimizer or null.
+	 * @return the assembled program
+	 */
+	public static Assembly assemble(Parser parser, int maxErrors, Stats stats, Peephole optimizer)
+	{
+		Program program = new Program();
+		SymbolTable symbolTable = new SymbolTable();
+		Diagnostics diagnostics = new Diagnostics(maxErrors);
+
+		stats.begin(Stats.Phase.FIRST_PASS);
+		boolean parsed = Assembler.firstPass(parser, symbolTable, program, diagnostics);
+		stats.end(parser.getLineNumber(), program.size());
+
+		int labels = symbolTable.size();
+		int variables = -1;
+		Peephole.Savings savings = null;
+		if (parsed && optimizer != null)
+		{
+			stats.begin(Stats.Phase.OPTIMIZE);
+			savings = optimizer.optimize(program, symbolTable);
+			stats.end(parser.getLineNumber(), program.size());
+			stats.countSavings(savings);
+		}
+		if (parsed)
+		{
+			stats.begin(Stats.Phase.SECOND_PASS);
+			// counted from the table, the optimizer may have added variables
+			Assembler.secondPass(program, symbolTable);
+			variables = symbolTable.size() - labels;
+			stats.end(parser.getLineNumber(), program.size());
+		}
+		stats.count(parser.getLineNumber(), program.size(), labels, variables);
+
+		return new Assembly(program, symbolTable, diagnostics, savings);
+	}
+
+	/**
+	 * Assembles the ascii hack asm between the position and the limit of the
+	 * buffer.
+	 * 
+	 * @param source
+	 *            - the hack asm source.
+	 * @return the assembled program
+	 */
+	public static Assembly assemble(ByteBuffer source)
+	{
+		return assemble(new Parser(source));
+	}
+
+	/**
+	 * Assembles the hack asm source.
+	 * 
+	 * @param source
+	 *            - the hack asm source.
+	 * @return the assembled program
+	 */
+	public static Assembly assemble(CharSequence source)
+	{
+		byte[] bytes = new byte[source.length()];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			// hack asm is ascii, anything else can only be an illegal char
+			char c = source.charAt(i);
+			bytes[i] = (byte) (c < 0x80 ? c : 0x7F);
+		}
+
+		return assemble(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Assembles the hack asm read from the reader. The reader is not closed.
+	 * 
+	 * @param source
+	 *            - the hack asm source.
+	 * @return the assembled program
+	 * @throws IOException
+	 *             if reading failed.
+	 */
+	public static Assembly assemble(Reader source) throws IOException
+	{
+		StringBuilder text = new StringBuilder();
+		char[] chunk = new char[8192];
+
+		int read;
+		while ((read = source.read(chunk)) >= 0)
+		{
+			text.append(chunk, 0, read);
+		}
+
+		return assemble(text);
+	}
+
+	/**
+	 * @return true if there were no errors and the words are complete.
+	 */
+	public boolean succeeded()
+	{
+		return diagnostics.isEmpty();
+	}
+
+	/**
+	 * @return a copy of the assembled machine words, symbols are unresolved
+	 *         if the assembly did not succeed.
+	 */
+	public short[] getWords()
+	{
+		return program.getWords();
+	}
+
+	/**
+	 * @return a read only view of the assembled machine words, symbols are
+	 *         unresolved if the assembly did not succeed.
+	 */
+	public ShortBuffer getWordBuffer()
+	{
+		return program.getWordBuffer();
+	}
+
+	/**
+	 * @return the symbol table with the labels and, if the assembly
+	 *         succeeded, the variables.
+	 */
+	public SymbolTable getSymbolTable()
+	{
+		return symbolTable;
+	}
+
+	/**
+	 * @return what the optimizer saved, or null if the program was not
+	 *         optimized.
+	 */
+	public Peephole.Savings getSavings()
+	{
+		return savings;
+	}
+
+	/**
+	 * @return the errors in source order, empty if the assembly succeeded.
+	 */
+	public List<AssemblerException> getDiagnostics()
+	{
+		return diagnostics.getErrors();
+	}
+
+	/**
+	 * @return true if assembling stopped at the error cap so there may be more
+	 *         errors than reported.
+	 */
+	public boolean isTruncated()
+	{
+		return diagnostics.isTruncated();
+	}
+}
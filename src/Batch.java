@@ -0,0 +1,345 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import exceptions.AssemblerException;
+
+/**
+ * Assembles many files at once, one {@link Assembly} per file scheduled on a
+ * work stealing pool. Every file goes through the same code as a single file
+ * run, so the outputs are identical, and all of them share the one
+ * {@link Code} instance. Diagnostics and timings are reported in input order
+ * once everything is done.
+ * 
+ * @author Boris
+ *
+ */
+public class Batch
+{
+	private static final String GLOB_CHARS = "*?[{";
+
+	/**
+	 * The outcome of assembling one file.
+	 */
+	private static class Result
+	{
+		Path		input;
+		Assembly	assembly;
+		boolean		cached;
+		boolean		stored;
+		String		failure;
+		long		nanos;
+	}
+
+	/**
+	 * Tests whether an input names more than one file, that is whether it is
+	 * a directory or a glob.
+	 * 
+	 * @param input
+	 *            - an input given on the command line.
+	 * @return true if the input has to be expanded by {@link #expand(List)}
+	 */
+	public static boolean isMultiple(String input)
+	{
+		return indexOfGlob(input) >= 0 || Files.isDirectory(Paths.get(input));
+	}
+
+	/**
+	 * Expands the inputs into the files to assemble. Directories become all
+	 * the .asm files below them and globs all the files they match, both
+	 * sorted by path. Anything else is taken as a file as is.
+	 * 
+	 * @param inputs
+	 *            - files, directories and globs.
+	 * @return the files in input order
+	 * @throws IOException
+	 *             if a directory could not be walked.
+	 */
+	public static List<Path> expand(List<String> inputs) throws IOException
+	{
+		List<Path> files = new ArrayList<>();
+
+		for (String input : inputs)
+		{
+			int globIndex = indexOfGlob(input);
+			if (globIndex >= 0)
+			{
+				String fixed = input.substring(0, globIndex);
+				int separator = Math.max(fixed.lastIndexOf('/'), fixed.lastIndexOf('\\'));
+				Path root = Paths.get(separator >= 0 ? input.substring(0, separator + 1) : "");
+				PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+
+				files.addAll(walk(root, matcher::matches));
+			}
+			else if (Files.isDirectory(Paths.get(input)))
+			{
+				files.addAll(walk(Paths.get(input), path -> path.toString().endsWith(".asm")));
+			}
+			else
+			{
+				files.add(Paths.get(input));
+			}
+		}
+
+		return files;
+	}
+
+	private static int indexOfGlob(String input)
+	{
+		for (int i = 0; i < input.length(); i++)
+		{
+			if (GLOB_CHARS.indexOf(input.charAt(i)) >= 0)
+			{
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private static List<Path> walk(Path root, Predicate<Path> filter) throws IOException
+	{
+		try (Stream<Path> paths = Files.walk(root))
+		{
+			return paths.filter(Files::isRegularFile)
+					.filter(filter)
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Assembles all inputs of the options in parallel and prints a report.
+	 * 
+	 * @param options
+	 *            - the command line options.
+	 * @return true if every file assembled
+	 */
+	public static boolean run(Options options)
+	{
+		ForkJoinPool pool = new ForkJoinPool(options.getJobs());
+		try
+		{
+			return run(options, pool, System.out, System.err);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Assembles all inputs of the options on the given pool and prints a
+	 * report to the given streams, for assembling on behalf of someone else
+	 * (see {@link Daemon}).
+	 * 
+	 * @param options
+	 *            - the options of the request.
+	 * @param pool
+	 *            - the pool to assemble on, left running.
+	 * @param out
+	 *            - where the report goes.
+	 * @param err
+	 *            - where the errors go.
+	 * @return true if every file assembled
+	 */
+	public static boolean run(Options options, ForkJoinPool pool, PrintStream out, PrintStream err)
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			Code.getInstance();
+		}
+		catch (UncheckedIOException ex)
+		{
+			err.println("Translation Codes Not Found.");
+			return false;
+		}
+
+		List<Path> files;
+		try
+		{
+			files = expand(options.getInputFileNames());
+		}
+		catch (IOException ex)
+		{
+			err.println("Could not list input files: " + ex.getMessage());
+			return false;
+		}
+
+		BuildCache cache = BuildCache.open(options, err);
+
+		List<ForkJoinTask<Result>> tasks = new ArrayList<>(files.size());
+		for (Path file : files)
+		{
+			tasks.add(pool.submit(() -> assembleFile(file, options, cache)));
+		}
+
+		int failed = 0;
+		boolean stored = false;
+		for (ForkJoinTask<Result> task : tasks)
+		{
+			Result result = task.join();
+			stored |= result.stored;
+			if (!report(result, out, err))
+			{
+				failed++;
+			}
+		}
+
+		if (cache != null && stored)
+		{
+			cache.trim();
+		}
+
+		out.printf("Assembled %d of %d files in %.1f ms with %d jobs%n",
+				files.size() - failed, files.size(), (System.nanoTime() - start) / 1e6, pool.getParallelism());
+
+		return failed == 0;
+	}
+
+	/**
+	 * Assembles one file the same way a single file run does, including
+	 * creating the output file even if assembling fails. With a cache the
+	 * output is copied from it if the file assembled before, and stored in it
+	 * if the file assembles now.
+	 */
+	private static Result assembleFile(Path input, Options options, BuildCache cache)
+	{
+		OutputFormat format = options.getFormat();
+		Result result = new Result();
+		result.input = input;
+
+		long start = System.nanoTime();
+
+		String[] pathSections = Assembler.dissectPath(input.toString());
+		Path output = Paths.get(pathSections[0] + pathSections[1] + format.getExtension());
+
+		byte[] source = null;
+		String key = null;
+		if (cache != null)
+		{
+			try
+			{
+				source = Files.readAllBytes(input);
+			}
+			catch (IOException ex)
+			{
+				result.failure = "Could not open file \"" + input + "\".";
+				result.nanos = System.nanoTime() - start;
+				return result;
+			}
+
+			key = cache.key(source, format, options.getOptimizer());
+			if (cache.fetch(key, output))
+			{
+				result.cached = true;
+				result.nanos = System.nanoTime() - start;
+				return result;
+			}
+		}
+
+		try (WordWriter outputFile = new WordWriter(FileChannel.open(output,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING),
+				format))
+		{
+			Parser parser;
+			try
+			{
+				parser = source != null ? new Parser(ByteBuffer.wrap(source)) : new Parser(input.toString());
+			}
+			catch (IOException ex)
+			{
+				result.failure = "Could not open file \"" + input + "\".";
+				return result;
+			}
+
+			try
+			{
+				result.assembly = options.isSinglePass() ? SinglePass.assemble(parser, options.getMaxErrors())
+						: Assembly.assemble(parser, options.getMaxErrors(), Stats.disabled(), options.getOptimizer());
+			}
+			catch (UncheckedIOException ex)
+			{
+				// the mapped input failed while it was read
+				result.failure = "Could not open file \"" + input + "\".";
+				return result;
+			}
+
+			if (result.assembly.succeeded())
+			{
+				outputFile.write(result.assembly.getWordBuffer());
+			}
+		}
+		catch (IOException ex)
+		{
+			result.failure = "Could not write output file " + output;
+		}
+		finally
+		{
+			result.nanos = System.nanoTime() - start;
+		}
+
+		if (cache != null && result.failure == null && result.assembly.succeeded())
+		{
+			result.stored = cache.store(key, output);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Prints the outcome of one file.
+	 * 
+	 * @return true if the file assembled
+	 */
+	private static boolean report(Result result, PrintStream out, PrintStream err)
+	{
+		if (result.failure != null)
+		{
+			err.println(result.input + ": " + result.failure);
+			return false;
+		}
+		else if (result.cached)
+		{
+			out.printf("%s: cached in %.2f ms%n", result.input, result.nanos / 1e6);
+			return true;
+		}
+		else if (!result.assembly.succeeded())
+		{
+			err.println(result.input + ": " + result.assembly.getDiagnostics().size() + " errors");
+			for (AssemblerException e : result.assembly.getDiagnostics())
+			{
+				err.println(e.parseFailDescriptor());
+			}
+			if (result.assembly.isTruncated())
+			{
+				err.println("Stopped after " + result.assembly.getDiagnostics().size() + " errors.");
+			}
+			return false;
+		}
+		else
+		{
+			out.printf("%s: %d words in %.2f ms%n",
+					result.input, result.assembly.getWordBuffer().remaining(), result.nanos / 1e6);
+			Assembler.printSavings(result.assembly.getSavings(), result.input + ": ", out);
+			return true;
+		}
+	}
+}
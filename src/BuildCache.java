@@ -0,0 +1,320 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persistent cache of assembled outputs, shared by runs and by processes. An
+ * entry is the output file of a source that assembled, stored under the
+ * SHA-256 of the source, the translation tables in effect, the output format,
+ * the optimizer rules and {@link #VERSION}, so a hit is one hash and one file
+ * copy.
+ * <p>
+ * Entries are written to a temporary file and moved into place atomically, so
+ * no process ever sees half an entry. Hits are copied rather than hard linked
+ * since outputs are rewritten in place, which would change the entry too. A
+ * hit touches the entry, so the modification times give the least recently
+ * used order {@link #trim()} evicts in. Trimming walks the whole cache, so it
+ * is only done after a store has grown it, never on a hit. Only one process
+ * at a time trims, holding the lock on the lock file of the cache. A cache that can't be read
+ * or written behaves like an empty one, it never fails a build.
+ *
+ * @author Boris
+ *
+ */
+public class BuildCache
+{
+	// change whenever the same source and tables assemble to something else
+	public static final String	VERSION			= "jash-1";
+
+	public static final long	DEFAULT_SIZE	= 256L << 20;
+
+	private static final String	LOCK_FILE		= "lock";
+	private static final String	ENTRY_SUFFIX	= ".out";
+	private static final String	TEMP_SUFFIX		= ".tmp";
+
+	// temporary files this old were left behind by a process that died
+	private static final long	STALE_MILLIS	= 60 * 60 * 1000;
+
+	private static final char[]	HEX_DIGITS		= "0123456789abcdef".toCharArray();
+
+	/**
+	 * An entry found by {@link #trim()}.
+	 */
+	private static class Entry
+	{
+		final Path		path;
+		final long		size;
+		final FileTime	lastUsed;
+
+		Entry(Path path, BasicFileAttributes attributes)
+		{
+			this.path = path;
+			this.size = attributes.size();
+			this.lastUsed = attributes.lastModifiedTime();
+		}
+	}
+
+	private final Path			directory;
+	private final long			maxBytes;
+
+	// digest of the version and the tables, the same for every key
+	private final byte[]		salt;
+
+	/**
+	 * Opens the cache, creating its directory if needed.
+	 *
+	 * @param directory
+	 *            - the directory of the cache.
+	 * @param maxBytes
+	 *            - the size the cache is trimmed to.
+	 * @throws IOException
+	 *             if the directory could not be created.
+	 * @throws java.io.UncheckedIOException
+	 *             if the translation codes could not be loaded.
+	 */
+	public BuildCache(Path directory, long maxBytes) throws IOException
+	{
+		this.directory = Files.createDirectories(directory);
+		this.maxBytes = maxBytes;
+
+		MessageDigest digest = newDigest();
+		digest.update(VERSION.getBytes(StandardCharsets.US_ASCII));
+		Code.getInstance().digest(digest);
+		salt = digest.digest();
+	}
+
+	/**
+	 * Opens the cache of the options, if they name one.
+	 *
+	 * @param options
+	 *            - the command line options.
+	 * @param err
+	 *            - where to report a cache that could not be opened.
+	 * @return the cache or null if there is none
+	 */
+	public static BuildCache open(Options options, PrintStream err)
+	{
+		if (options.getCacheDirectory() == null)
+		{
+			return null;
+		}
+
+		try
+		{
+			return new BuildCache(Paths.get(options.getCacheDirectory()), options.getCacheSize());
+		}
+		catch (IOException ex)
+		{
+			err.println("Could not open cache " + options.getCacheDirectory() + ", assembling without it.");
+			return null;
+		}
+	}
+
+	/**
+	 * Computes the key of the output of a source.
+	 *
+	 * @param source
+	 *            - the whole source.
+	 * @param format
+	 *            - the format of the output.
+	 * @param optimizer
+	 *            - the optimizer or null.
+	 * @return the key as hex digits
+	 */
+	public String key(byte[] source, OutputFormat format, Peephole optimizer)
+	{
+		MessageDigest digest = newDigest();
+		digest.update(salt);
+		digest.update(format.getExtension().getBytes(StandardCharsets.US_ASCII));
+		// the rules are comma separated, a ';' ends them
+		digest.update((optimizer == null ? ";" : optimizer + ";").getBytes(StandardCharsets.US_ASCII));
+		digest.update(source);
+
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++)
+		{
+			hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+			hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xF];
+		}
+
+		return new String(hex);
+	}
+
+	/**
+	 * Copies the entry of the key to the output file.
+	 *
+	 * @param key
+	 *            - the key from {@link #key(byte[], OutputFormat, Peephole)}.
+	 * @param output
+	 *            - the output file, replaced if it exists.
+	 * @return true on a hit, false if there is no entry or it could not be
+	 *         copied
+	 */
+	public boolean fetch(String key, Path output)
+	{
+		Path entry = entry(key);
+		try
+		{
+			// touching first also fails if the entry was just evicted
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+			Files.copy(entry, output, StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		}
+		catch (IOException ex)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Stores the output file as the entry of the key. A concurrent store of
+	 * the same key is harmless since both write the same bytes.
+	 *
+	 * @param key
+	 *            - the key from {@link #key(byte[], OutputFormat, Peephole)}.
+	 * @param output
+	 *            - the output file of a source that assembled.
+	 * @return true if the entry was stored, false if it could not be
+	 */
+	public boolean store(String key, Path output)
+	{
+		Path entry = entry(key);
+		Path temp = null;
+		try
+		{
+			Files.createDirectories(entry.getParent());
+			temp = Files.createTempFile(entry.getParent(), key, TEMP_SUFFIX);
+			Files.copy(output, temp, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			temp = null;
+			return true;
+		}
+		catch (IOException ex)
+		{
+			// not cached, the output is fine anyway
+			return false;
+		}
+		finally
+		{
+			deleteQuietly(temp);
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache fits its size,
+	 * and deletes temporary files left behind by processes that died. Does
+	 * nothing if another process or thread is trimming already.
+	 */
+	public void trim()
+	{
+		try (FileChannel lockFile = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE); FileLock lock = lockFile.tryLock())
+		{
+			if (lock == null)
+			{
+				return;
+			}
+
+			List<Entry> entries = new ArrayList<>();
+			long staleBefore = System.currentTimeMillis() - STALE_MILLIS;
+			Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				{
+					String name = file.getFileName().toString();
+					if (name.endsWith(ENTRY_SUFFIX))
+					{
+						entries.add(new Entry(file, attrs));
+					}
+					else if (name.endsWith(TEMP_SUFFIX) && attrs.lastModifiedTime().toMillis() < staleBefore)
+					{
+						deleteQuietly(file);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc)
+				{
+					// deleted by a concurrent eviction or unreadable
+					return FileVisitResult.CONTINUE;
+				}
+			});
+
+			long size = 0;
+			for (Entry entry : entries)
+			{
+				size += entry.size;
+			}
+
+			entries.sort(Comparator.comparing((Entry entry) -> entry.lastUsed));
+			for (int i = 0; i < entries.size() && size > maxBytes; i++)
+			{
+				deleteQuietly(entries.get(i).path);
+				size -= entries.get(i).size;
+			}
+		}
+		catch (IOException | OverlappingFileLockException ex)
+		{
+			// trimmed some other time
+		}
+	}
+
+	/**
+	 * @return the path of the entry, below a directory named after the first
+	 *         two digits of the key so no directory gets too large
+	 */
+	private Path entry(String key)
+	{
+		return directory.resolve(key.substring(0, 2)).resolve(key.substring(2) + ENTRY_SUFFIX);
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// every Java platform has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void deleteQuietly(Path file)
+	{
+		if (file == null)
+		{
+			return;
+		}
+
+		try
+		{
+			Files.deleteIfExists(file);
+		}
+		catch (IOException ex)
+		{
+			// left for the next trim
+		}
+	}
+}
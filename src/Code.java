@@ -1,90 +1,182 @@
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.Properties;
 
 /**
- * Singleton for translating mnemonics to corresponding hack machine bit strings
+ * Singleton for translating mnemonics to corresponding hack machine bit fields.
+ * The tables are compiled in (see {@link CodeTables}), setting the system
+ * property {@value #CODES_PROPERTY} to a directory with compCodes.properties,
+ * destCodes.properties and jumpCodes.properties loads those instead.
  * 
  * @author Boris
  *
  */
 public class Code
 {
-	private static Code	instance	= null;
+	public static final String		CODES_PROPERTY	= "jash.codes";
 
-	private Properties	compCodes	= new Properties();
-	private Properties	destCodes	= new Properties();
-	private Properties	jumpCodes	= new Properties();
+	private static volatile Code	instance		= null;
+
+	private final MnemonicTable		compCodes;
+	private final MnemonicTable		destCodes;
+	private final MnemonicTable		jumpCodes;
 
 	/**
-	 * Non-thread safe constructor for the singleton that loads the predefined
-	 * mnemonics and their translation.
+	 * Constructor for the singleton that builds the predefined mnemonics and
+	 * their translation, from the override directory if one is set. The
+	 * tables are immutable so the instance can be shared by any number of
+	 * threads.
+	 * 
+	 * @throws UncheckedIOException
+	 *             if the override could not be read.
 	 */
 	protected Code()
 	{
-		try
+		String codes = System.getProperty(CODES_PROPERTY);
+		if (codes == null)
+		{
+			compCodes = new MnemonicTable(CodeTables.COMP_MNEMONICS, CodeTables.COMP_CODES);
+			destCodes = new MnemonicTable(CodeTables.DEST_MNEMONICS, CodeTables.DEST_CODES);
+			jumpCodes = new MnemonicTable(CodeTables.JUMP_MNEMONICS, CodeTables.JUMP_CODES);
+		}
+		else
+		{
+			compCodes = new MnemonicTable(load(Paths.get(codes, "compCodes.properties")));
+			destCodes = new MnemonicTable(load(Paths.get(codes, "destCodes.properties")));
+			jumpCodes = new MnemonicTable(load(Paths.get(codes, "jumpCodes.properties")));
+		}
+	}
+
+	/**
+	 * Loads the translation properties file.
+	 * 
+	 * @throws UncheckedIOException
+	 *             if the file could not be read.
+	 */
+	private static Properties load(Path path)
+	{
+		Properties codes = new Properties();
+
+		try (InputStream in = Files.newInputStream(path))
 		{
-			compCodes.load(Files.newInputStream(Paths.get("codes/compCodes.properties")));
-			destCodes.load(Files.newInputStream(Paths.get("codes/destCodes.properties")));
-			jumpCodes.load(Files.newInputStream(Paths.get("codes/jumpCodes.properties")));
+			codes.load(in);
 		}
 		catch (IOException e)
 		{
-			System.err.println("Translation Codes Not Found.");
-			System.exit(1); // 1 = codes not found
+			throw new UncheckedIOException("Translation Codes Not Found.", e);
 		}
+
+		return codes;
 	}
 
 	/**
-	 * Non-Thread Safe instance getter for the {@link Code} singleton.
+	 * Thread safe instance getter for the {@link Code} singleton.
 	 * 
 	 * @return The singleton instance
+	 * @throws UncheckedIOException
+	 *             if the override translation codes could not be loaded.
 	 */
 	public static Code getInstance()
 	{
-		if (instance == null)
+		Code code = instance;
+		if (code == null)
 		{
-			instance = new Code();
+			synchronized (Code.class)
+			{
+				code = instance;
+				if (code == null)
+				{
+					instance = code = new Code();
+				}
+			}
 		}
 
-		return instance;
+		return code;
+	}
+
+	/**
+	 * Feeds the translation tables in effect to the digest, for telling apart
+	 * outputs assembled with different tables (see {@link BuildCache}).
+	 * 
+	 * @param digest
+	 *            - the digest to update.
+	 */
+	public void digest(MessageDigest digest)
+	{
+		compCodes.digest(digest);
+		destCodes.digest(digest);
+		jumpCodes.digest(digest);
+	}
+
+	/**
+	 * Translates the mnemonic in {@code line[start, end)}.
+	 * 
+	 * @param line
+	 *            - ascii bytes containing a computation mnemonic
+	 * @param start
+	 *            - start of the mnemonic
+	 * @param end
+	 *            - end (exclusive) of the mnemonic
+	 * @return the 7 bit translation or -1 if no such translation exists.
+	 */
+	public int getComp(byte[] line, int start, int end)
+	{
+		return compCodes.get(line, start, end);
 	}
 
 	/**
-	 * Translates the given mnemonic.
+	 * Translates the mnemonic in {@code line[start, end)}.
 	 * 
-	 * @param mnemonic
-	 *            - a computation mnemonic
-	 * @return the binary translation or null if no such translation exists.
+	 * @param line
+	 *            - ascii bytes containing a destination mnemonic, an empty
+	 *            mnemonic is the same as {@code null}
+	 * @param start
+	 *            - start of the mnemonic
+	 * @param end
+	 *            - end (exclusive) of the mnemonic
+	 * @return the 3 bit translation or -1 if no such translation exists.
 	 */
-	public String getComp(String mnemonic)
+	public int getDest(byte[] line, int start, int end)
 	{
-		return compCodes.getProperty(mnemonic, null);
+		return destCodes.get(line, start, end);
 	}
 
 	/**
-	 * Translates the given mnemonic.
+	 * Translates the mnemonic in {@code line[start, end)}.
 	 * 
-	 * @param mnemonic
-	 *            - a destination mnemonic
-	 * @return the binary translation or null if no such translation exists.
+	 * @param line
+	 *            - ascii bytes containing a jump mnemonic, an empty mnemonic
+	 *            is the same as {@code null}
+	 * @param start
+	 *            - start of the mnemonic
+	 * @param end
+	 *            - end (exclusive) of the mnemonic
+	 * @return the 3 bit translation or -1 if no such translation exists.
 	 */
-	public String getDest(String mnemonic)
+	public int getJump(byte[] line, int start, int end)
 	{
-		return destCodes.getProperty(mnemonic, null);
+		return jumpCodes.get(line, start, end);
 	}
 
 	/**
-	 * Translates the given mnemonic.
+	 * Assembles the translated fields into a C instruction.
 	 * 
-	 * @param mnemonic
-	 *            - a jump mnemonic
-	 * @return the binary translation or null if no such translation exists.
+	 * @param comp
+	 *            - 7 bit computation translation
+	 * @param dest
+	 *            - 3 bit destination translation
+	 * @param jump
+	 *            - 3 bit jump translation
+	 * @return the machine word of the C instruction
 	 */
-	public String getJump(String mnemonic)
+	public static short encodeC(int comp, int dest, int jump)
 	{
-		return jumpCodes.getProperty(mnemonic, null);
+		return (short) (0b111 << 13 | comp << 6 | dest << 3 | jump);
 	}
 
 	/*	@formatter:off
@@ -0,0 +1,310 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Resident assembler serving requests over a Unix domain socket, so a build
+ * pays for starting the JVM, loading the translation codes and compiling the
+ * hot code once instead of once per file. Requests are handled concurrently,
+ * each on a thread of its own, and the files of all requests share one work
+ * stealing pool.
+ * <p>
+ * A request is the command line arguments of a run, one per line in UTF-8,
+ * ended by an empty line. It runs the way it would on the command line: as a
+ * link, a batch, or a single file with any of the single file engines. The
+ * {@link #send(String, String[])} client makes relative paths absolute since
+ * the daemon runs in another directory. The response is a header line
+ * {@code <exit status> <out bytes> <err bytes>} followed by what the run
+ * printed to standard output and standard error. A request that fails
+ * unexpectedly is answered with exit status 1 and the failure.
+ *
+ * @author Boris
+ *
+ */
+public class Daemon
+{
+	// exit status of the client if the daemon can't be reached
+	public static final int		UNREACHABLE	= 5;
+
+	// lines of the program assembled over and over before serving
+	private static final int	WARMUP_LINES	= 2000;
+	private static final int	WARMUP_RUNS		= 200;
+
+	/**
+	 * Serves requests on the socket until the JVM is stopped. A stale socket
+	 * file is replaced and the socket file is deleted on exit.
+	 *
+	 * @param socket
+	 *            - path of the socket file.
+	 * @param jobs
+	 *            - the number of files assembled in parallel.
+	 * @throws IOException
+	 *             if the socket could not be bound.
+	 * @throws UncheckedIOException
+	 *             if the translation codes could not be loaded.
+	 */
+	public static void serve(String socket, int jobs) throws IOException
+	{
+		Code.getInstance();
+		warmUp();
+
+		Path path = Paths.get(socket);
+		Files.deleteIfExists(path);
+
+		ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(path));
+		Runtime.getRuntime().addShutdownHook(new Thread(() ->
+		{
+			try
+			{
+				server.close();
+				Files.deleteIfExists(path);
+			}
+			catch (IOException e)
+			{
+				// exiting anyway
+			}
+		}));
+
+		ForkJoinPool pool = new ForkJoinPool(jobs);
+		ExecutorService requests = Executors.newCachedThreadPool(runnable ->
+		{
+			Thread thread = new Thread(runnable, "jash-request");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		System.out.println("Serving on " + path);
+		while (server.isOpen())
+		{
+			SocketChannel client;
+			try
+			{
+				client = server.accept();
+			}
+			catch (IOException e)
+			{
+				if (server.isOpen())
+				{
+					System.err.println("Could not accept a request: " + e.getMessage());
+					continue;
+				}
+				break;
+			}
+
+			requests.execute(() -> handle(client, pool));
+		}
+	}
+
+	/**
+	 * Assembles a generated program in memory until the passes are compiled.
+	 */
+	private static void warmUp()
+	{
+		StringBuilder source = new StringBuilder();
+		for (int i = 0; i < WARMUP_LINES / 8; i++)
+		{
+			source.append("(LOOP.").append(i).append(")\n@").append(i).append("\nD=A\n@var.").append(i % 64)
+					.append("\nM=D+M\n@LOOP.").append(i).append("\nD;JGT // back\n\n");
+		}
+
+		byte[] bytes = source.toString().getBytes(StandardCharsets.US_ASCII);
+		for (int i = 0; i < WARMUP_RUNS; i++)
+		{
+			Assembly.assemble(ByteBuffer.wrap(bytes));
+		}
+	}
+
+	/**
+	 * Reads one request, runs it and writes the response.
+	 */
+	private static void handle(SocketChannel client, ForkJoinPool pool)
+	{
+		try (SocketChannel channel = client)
+		{
+			InputStream in = Channels.newInputStream(channel);
+			List<String> args = new ArrayList<>();
+			String arg;
+			while ((arg = readLine(in)) != null && !arg.isEmpty())
+			{
+				args.add(arg);
+			}
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ByteArrayOutputStream err = new ByteArrayOutputStream();
+			PrintStream errStream = new PrintStream(err, true, StandardCharsets.UTF_8);
+			int status;
+			try
+			{
+				status = run(args, pool, new PrintStream(out, true, StandardCharsets.UTF_8), errStream);
+			}
+			catch (RuntimeException | OutOfMemoryError ex)
+			{
+				// only this request failed, the daemon keeps serving
+				errStream.println("Could not run the request: " + ex);
+				status = 1; // 1 = the assembler failed
+			}
+
+			OutputStream response = Channels.newOutputStream(channel);
+			response.write((status + " " + out.size() + " " + err.size() + "\n").getBytes(StandardCharsets.UTF_8));
+			out.writeTo(response);
+			err.writeTo(response);
+			response.flush();
+		}
+		catch (IOException e)
+		{
+			// the client went away, nothing to answer
+		}
+	}
+
+	/**
+	 * Runs the arguments of a request as a link, a batch or a single file,
+	 * the same as {@link Assembler#main(String[])} would.
+	 *
+	 * @return the exit status the command line would have had
+	 */
+	private static int run(List<String> args, ForkJoinPool pool, PrintStream out, PrintStream err)
+	{
+		Options options;
+		try
+		{
+			options = Options.parse(args.toArray(new String[0]));
+		}
+		catch (IllegalArgumentException ex)
+		{
+			err.println(ex.getMessage());
+			err.println(Options.USAGE);
+			return 3; // 3 = bad arguments
+		}
+
+		if (options.getInputFileNames().isEmpty() || options.getDaemonSocket() != null
+				|| options.getClientSocket() != null || options.isWatch())
+		{
+			err.println("A request needs input files and can't watch or start another daemon or client.");
+			return 3; // 3 = bad arguments
+		}
+
+		if (options.getLinkOutput() != null)
+		{
+			return Linker.run(options, pool, out, err) ? 0 : 4; // 4 = some files failed
+		}
+
+		if (options.isBatch())
+		{
+			return Batch.run(options, pool, out, err) ? 0 : 4; // 4 = some files failed
+		}
+
+		out.println("command line arg = ".concat(options.getInputFileName()));
+		return Assembler.assemble(options.getInputFileName(), options, out, err);
+	}
+
+	/**
+	 * Sends the arguments to the daemon and prints its response.
+	 *
+	 * @param socket
+	 *            - path of the socket file of the daemon.
+	 * @param args
+	 *            - the command line arguments, the client option is left
+	 *            out of the request.
+	 * @return the exit status of the request or {@link #UNREACHABLE}
+	 */
+	public static int send(String socket, String[] args)
+	{
+		StringBuilder request = new StringBuilder();
+		for (String arg : args)
+		{
+			if (arg.startsWith("--client="))
+			{
+				continue;
+			}
+
+			// the daemon has a different working directory
+			if (arg.startsWith("--cache="))
+			{
+				arg = "--cache=" + Paths.get(arg.substring("--cache=".length())).toAbsolutePath();
+			}
+			else if (arg.startsWith("--link="))
+			{
+				arg = "--link=" + Paths.get(arg.substring("--link=".length())).toAbsolutePath();
+			}
+			request.append(arg.startsWith("--") ? arg : Paths.get(arg).toAbsolutePath().toString()).append('\n');
+		}
+		request.append('\n');
+
+		try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(Paths.get(socket))))
+		{
+			OutputStream out = Channels.newOutputStream(channel);
+			out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+			out.flush();
+
+			InputStream in = Channels.newInputStream(channel);
+			String header = readLine(in);
+			if (header == null)
+			{
+				throw new IOException("no response");
+			}
+
+			String[] fields = header.split(" ");
+			copy(in, System.out, Integer.parseInt(fields[1]));
+			copy(in, System.err, Integer.parseInt(fields[2]));
+			return Integer.parseInt(fields[0]);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			System.err.println("Could not reach the daemon at " + socket + ": " + e.getMessage());
+			return UNREACHABLE;
+		}
+	}
+
+	/**
+	 * Reads a UTF-8 line without the '\n', a byte at a time so nothing past
+	 * the line is consumed.
+	 *
+	 * @return the line or null at the end of the stream
+	 */
+	private static String readLine(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n')
+		{
+			line.write(b);
+		}
+
+		return b < 0 && line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+	}
+
+	private static void copy(InputStream in, PrintStream out, int length) throws IOException
+	{
+		byte[] buffer = new byte[8192];
+		while (length > 0)
+		{
+			int read = in.read(buffer, 0, Math.min(buffer.length, length));
+			if (read < 0)
+			{
+				throw new IOException("response cut short");
+			}
+			out.write(buffer, 0, read);
+			length -= read;
+		}
+		out.flush();
+	}
+}
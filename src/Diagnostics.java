@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import exceptions.AssemblerException;
+
+/**
+ * Collects the errors of an assembly. Errors are only recorded (line, columns,
+ * {@link exceptions.ErrorCode} and the text of the line), their messages are
+ * put together once they are printed. Once the cap is reached the assembly
+ * stops and the diagnostics are marked as truncated.
+ * 
+ * @author Boris
+ *
+ */
+public class Diagnostics
+{
+	public static final int					UNLIMITED	= Integer.MAX_VALUE;
+
+	private final List<AssemblerException>	errors;
+	private final int						maxErrors;
+	private boolean							truncated;
+
+	/**
+	 * Creates a collector that keeps every error.
+	 */
+	public Diagnostics()
+	{
+		this(UNLIMITED);
+	}
+
+	/**
+	 * Creates a collector that stops the assembly after the given number of
+	 * errors.
+	 * 
+	 * @param maxErrors
+	 *            - the most errors to collect, at least 1.
+	 */
+	public Diagnostics(int maxErrors)
+	{
+		if (maxErrors < 1)
+		{
+			throw new IllegalArgumentException("maxErrors needs to be at least 1");
+		}
+
+		this.errors = new ArrayList<>();
+		this.maxErrors = maxErrors;
+		this.truncated = false;
+	}
+
+	/**
+	 * Records an error unless the cap is already reached.
+	 * 
+	 * @param error
+	 *            - the error to record.
+	 */
+	public void add(AssemblerException error)
+	{
+		if (errors.size() < maxErrors)
+		{
+			errors.add(error);
+		}
+		else
+		{
+			truncated = true;
+		}
+	}
+
+	/**
+	 * @return true if the cap is reached and the assembly should stop
+	 */
+	public boolean isFull()
+	{
+		return errors.size() >= maxErrors;
+	}
+
+	/**
+	 * Marks the diagnostics as incomplete, called when the assembly stopped
+	 * with input left.
+	 */
+	void truncate()
+	{
+		truncated = true;
+	}
+
+	/**
+	 * @return true if the assembly stopped at the cap with input left, so
+	 *         there may be more errors than collected
+	 */
+	public boolean isTruncated()
+	{
+		return truncated;
+	}
+
+	/**
+	 * @return true if no errors were collected
+	 */
+	public boolean isEmpty()
+	{
+		return errors.isEmpty();
+	}
+
+	/**
+	 * @return the number of collected errors
+	 */
+	public int size()
+	{
+		return errors.size();
+	}
+
+	/**
+	 * @return the most errors to collect
+	 */
+	public int getMaxErrors()
+	{
+		return maxErrors;
+	}
+
+	/**
+	 * @return the collected errors in the order they were found
+	 */
+	public List<AssemblerException> getErrors()
+	{
+		return Collections.unmodifiableList(errors);
+	}
+}
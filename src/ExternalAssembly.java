@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import exceptions.AssemblerException;
+
+/**
+ * Assembles sources of any size in memory bounded by a budget, apart from the
+ * symbol table. The first pass drains its instructions into a temporary spill
+ * file whenever its buffer is full (see {@link Program.Drain}), so only the
+ * labels stay resident. The spill file is then streamed into the output,
+ * resolving each symbol as it comes just like
+ * {@link Assembler#secondPass(Program, SymbolTable)} does, so the variables
+ * get the same addresses.
+ * <p>
+ * An encoded instruction is spilled as its big endian word. An A instruction
+ * referring to a symbol is spilled as the length of the symbol tagged with
+ * {@code 100} in the top three bits, which no encoded word has (A words start
+ * with 0 and C words with 111), followed by the ascii symbol. Lengths that
+ * don't fit the 13 bits left are {@link #LONG_NAME} followed by a 32 bit
+ * length. Without a cap on the errors at most {@link #DEFAULT_MAX_ERRORS} are
+ * kept since they would grow with the source too.
+ *
+ * @author Boris
+ *
+ */
+public class ExternalAssembly
+{
+	public static final int		DEFAULT_BUDGET		= 8 << 20;
+	public static final int		DEFAULT_MAX_ERRORS	= 100;
+
+	private static final int	SYMBOL_TAG			= 0x8000;
+	private static final int	TAG_MASK			= 0xE000;
+	private static final int	LONG_NAME			= 0x1FFF;
+
+	// bytes per instruction held by the first pass: word, symbol id and line
+	private static final int	INSTRUCTION_BYTES	= 2 + 4 + 4;
+	private static final int	MIN_BUFFER			= 1 << 16;
+
+	private final Diagnostics	diagnostics;
+	private final SymbolTable	symbolTable;
+	private long				size;
+	private int					lines;
+	private int					labels;
+
+	private ExternalAssembly(int maxErrors)
+	{
+		diagnostics = new Diagnostics(maxErrors);
+		symbolTable = new SymbolTable();
+		size = 0;
+		lines = 0;
+		labels = 0;
+	}
+
+	/**
+	 * Assembles everything read from the input and writes the words to the
+	 * output, which is left open. Nothing is written if there are errors.
+	 *
+	 * @param input
+	 *            - the hack asm source, closed once read.
+	 * @param output
+	 *            - where the words go.
+	 * @param maxErrors
+	 *            - the most errors to report, at least 1.
+	 * @param budget
+	 *            - the bytes to buffer instructions in, half of them for the
+	 *            first pass and half for writing and reading the spill file.
+	 * @return the outcome of assembling
+	 * @throws IOException
+	 *             if reading, spilling or writing failed.
+	 */
+	public static ExternalAssembly assemble(ReadableByteChannel input, WordWriter output, int maxErrors, int budget)
+			throws IOException
+	{
+		Code.getInstance();
+
+		ExternalAssembly assembly = new ExternalAssembly(
+				maxErrors == Diagnostics.UNLIMITED ? DEFAULT_MAX_ERRORS : maxErrors);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(budget / 2, MIN_BUFFER));
+
+		try (FileChannel spill = FileChannel.open(Files.createTempFile("jash", ".spill"), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE))
+		{
+			Program program = new Program(Math.max(budget / 2 / INSTRUCTION_BYTES, 1),
+					drained -> assembly.spill(spill, buffer, drained));
+
+			Parser parser = new Parser(input);
+			boolean parsed = Assembler.firstPass(parser, assembly.symbolTable, program, assembly.diagnostics);
+			assembly.lines = parser.getLineNumber();
+			assembly.labels = assembly.symbolTable.size();
+			if (!parsed)
+			{
+				return assembly;
+			}
+
+			program.drain();
+			flush(spill, buffer);
+
+			assembly.stream(spill, buffer, output);
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+
+		return assembly;
+	}
+
+	/**
+	 * Appends the instructions held by the program to the spill file.
+	 */
+	private void spill(FileChannel spill, ByteBuffer buffer, Program program) throws IOException
+	{
+		for (int i = 0; i < program.size(); i++)
+		{
+			if (buffer.remaining() < 2 + 4)
+			{
+				flush(spill, buffer);
+			}
+
+			int symbol = program.getSymbol(i);
+			if (symbol == Program.NO_SYMBOL)
+			{
+				buffer.putShort(program.getWord(i));
+				continue;
+			}
+
+			byte[] name = program.getSymbolKey(symbol);
+			if (name.length < LONG_NAME)
+			{
+				buffer.putShort((short) (SYMBOL_TAG | name.length));
+			}
+			else
+			{
+				buffer.putShort((short) (SYMBOL_TAG | LONG_NAME));
+				buffer.putInt(name.length);
+			}
+
+			for (int offset = 0; offset < name.length;)
+			{
+				if (!buffer.hasRemaining())
+				{
+					flush(spill, buffer);
+				}
+				int count = Math.min(buffer.remaining(), name.length - offset);
+				buffer.put(name, offset, count);
+				offset += count;
+			}
+		}
+
+		size += program.size();
+	}
+
+	private static void flush(FileChannel spill, ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+		{
+			spill.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Reads the spill file back and writes the resolved words. Symbols are
+	 * resolved in the order they are referenced, so a new one is a variable.
+	 */
+	private void stream(FileChannel spill, ByteBuffer buffer, WordWriter output) throws IOException
+	{
+		spill.position(0);
+		buffer.flip();
+
+		int nextRAM = 16;
+		byte[] name = new byte[64];
+		while (fill(spill, buffer, 2))
+		{
+			int word = buffer.getShort();
+			if ((word & TAG_MASK) != SYMBOL_TAG)
+			{
+				output.write((short) word);
+				continue;
+			}
+
+			int length = word & LONG_NAME;
+			if (length == LONG_NAME)
+			{
+				if (!fill(spill, buffer, 4))
+				{
+					throw new IOException("Spill file cut short");
+				}
+				length = buffer.getInt();
+			}
+			if (length > name.length)
+			{
+				name = new byte[Math.max(length, name.length * 2)];
+			}
+
+			for (int offset = 0; offset < length;)
+			{
+				if (!fill(spill, buffer, 1))
+				{
+					throw new IOException("Spill file cut short");
+				}
+				int count = Math.min(buffer.remaining(), length - offset);
+				buffer.get(name, offset, count);
+				offset += count;
+			}
+
+			int address = symbolTable.lookupOrInsert(name, 0, length, nextRAM);
+			if (address < 0)
+			{
+				address = nextRAM;
+				nextRAM++;
+			}
+			output.write((short) (address & 0x7FFF));
+		}
+	}
+
+	/**
+	 * Reads from the spill file until the buffer has the given number of
+	 * bytes remaining, at most its capacity.
+	 *
+	 * @return false if the spill file ended first
+	 */
+	private static boolean fill(FileChannel spill, ByteBuffer buffer, int bytes) throws IOException
+	{
+		if (buffer.remaining() >= bytes)
+		{
+			return true;
+		}
+
+		buffer.compact();
+		while (buffer.position() < bytes && spill.read(buffer) >= 0)
+		{
+			// keep reading
+		}
+		buffer.flip();
+
+		return buffer.remaining() >= bytes;
+	}
+
+	/**
+	 * @return true if there were no errors
+	 */
+	public boolean succeeded()
+	{
+		return diagnostics.isEmpty();
+	}
+
+	/**
+	 * @return the errors found, in source order
+	 */
+	public List<AssemblerException> getDiagnostics()
+	{
+		return diagnostics.getErrors();
+	}
+
+	/**
+	 * @return true if assembling stopped at the error cap
+	 */
+	public boolean isTruncated()
+	{
+		return diagnostics.isTruncated();
+	}
+
+	/**
+	 * @return the labels and variables with their addresses
+	 */
+	public SymbolTable getSymbolTable()
+	{
+		return symbolTable;
+	}
+
+	/**
+	 * @return the number of instructions written
+	 */
+	public long size()
+	{
+		return succeeded() ? size : 0;
+	}
+
+	/**
+	 * @return the number of source lines read
+	 */
+	public int getLineCount()
+	{
+		return lines;
+	}
+
+	/**
+	 * @return the number of labels the first pass defined
+	 */
+	public int getLabelCount()
+	{
+		return labels;
+	}
+}
@@ -0,0 +1,492 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import exceptions.AssemblerException;
+
+/**
+ * Assembles successive versions of one source, redoing only what an edit
+ * touched. The source is kept as regions of whole lines, each with its own
+ * first pass result (program, label table and diagnostics) just like the
+ * chunks of {@link ParallelAssembly}. An update finds the edit as the bytes
+ * between the common prefix and the common suffix of the old and the new
+ * source, and only the regions overlapping it are lexed and encoded again.
+ * The symbols are resolved again only if a label moved or the order in which
+ * variables first appear changed, otherwise only the new regions are patched
+ * with the addresses from before. The result is identical to
+ * {@link Assembly#assemble(ByteBuffer)} of the new source.
+ *
+ * @author Boris
+ *
+ */
+public class IncrementalAssembly
+{
+	// regions are cut at the first line end after this many bytes
+	private static final int	REGION_SIZE		= 1 << 16;
+	// the suffix is compared in blocks of this size from the end
+	private static final int	SUFFIX_BLOCK	= 1 << 12;
+
+	/**
+	 * The state of one region of the source.
+	 */
+	private static class Region
+	{
+		int				start;
+		int				end;
+		int				lines;
+		int				romOffset;
+		int				lineOffset;
+
+		Program			program;
+		Diagnostics		diagnostics;
+
+		// the labels in definition order and their addresses in the region
+		byte[][]		labels;
+		int[]			labelAddresses;
+
+		// address of every local symbol id
+		int[]			addresses;
+	}
+
+	private final int			maxErrors;
+
+	private byte[]				source;
+	private List<Region>		regions;
+
+	// the labels of the last resolution and the table with its variables, or
+	// null if there was none since the last errors
+	private SymbolTable			labelTable;
+	private SymbolTable			symbolTable;
+	private Assembly			assembly;
+
+	private int					relexed;
+
+	/**
+	 * @param maxErrors
+	 *            - the most errors to report per update, at least 1.
+	 */
+	public IncrementalAssembly(int maxErrors)
+	{
+		this.maxErrors = maxErrors;
+		source = new byte[0];
+		regions = new ArrayList<>();
+		labelTable = null;
+		symbolTable = null;
+		assembly = null;
+		relexed = 0;
+	}
+
+	/**
+	 * Assembles the new version of the source.
+	 *
+	 * @param next
+	 *            - the whole ascii hack asm source, must not be changed
+	 *            afterwards.
+	 * @return the assembled program
+	 */
+	public Assembly update(byte[] next)
+	{
+		relexed = 0;
+
+		// the edit is what is left between the common prefix and suffix
+		int prefix = Arrays.mismatch(source, next);
+		if (prefix < 0)
+		{
+			if (assembly != null)
+			{
+				return assembly;
+			}
+			prefix = source.length;
+		}
+
+		Code.getInstance();
+		int suffix = commonSuffix(source, next, Math.min(source.length, next.length) - prefix);
+		int delta = next.length - source.length;
+
+		// a region is kept if neither its bytes nor the line end before it
+		// changed
+		List<Region> kept = new ArrayList<>(regions.size() + 1);
+		List<Region> removed = new ArrayList<>();
+		int dirtyStart = 0;
+		int dirtyEnd = next.length;
+		int index = 0;
+		for (; index < regions.size() && regions.get(index).end <= prefix
+				&& source[regions.get(index).end - 1] == '\n'; index++)
+		{
+			kept.add(regions.get(index));
+			dirtyStart = regions.get(index).end;
+		}
+		int firstSuffix = index;
+		while (firstSuffix < regions.size() && regions.get(firstSuffix).start <= source.length - suffix)
+		{
+			removed.add(regions.get(firstSuffix));
+			firstSuffix++;
+		}
+		if (firstSuffix < regions.size())
+		{
+			dirtyEnd = regions.get(firstSuffix).start + delta;
+		}
+
+		List<Region> added = split(next, dirtyStart, dirtyEnd);
+		kept.addAll(added);
+		for (int i = firstSuffix; i < regions.size(); i++)
+		{
+			Region region = regions.get(i);
+			region.start += delta;
+			region.end += delta;
+			kept.add(region);
+		}
+
+		source = next;
+		regions = kept;
+		relexed = added.size();
+
+		assembly = merge(removed, added);
+		return assembly;
+	}
+
+	/**
+	 * @return the number of regions the last update lexed again
+	 */
+	public int getRelexedRegions()
+	{
+		return relexed;
+	}
+
+	/**
+	 * @return the number of regions the source is kept in
+	 */
+	public int getRegionCount()
+	{
+		return regions.size();
+	}
+
+	/**
+	 * @return the length of the common suffix of a and b, at most max
+	 */
+	private static int commonSuffix(byte[] a, byte[] b, int max)
+	{
+		int suffix = 0;
+		while (suffix < max)
+		{
+			int length = Math.min(SUFFIX_BLOCK, max - suffix);
+			int aEnd = a.length - suffix;
+			int bEnd = b.length - suffix;
+			if (Arrays.equals(a, aEnd - length, aEnd, b, bEnd - length, bEnd))
+			{
+				suffix += length;
+				continue;
+			}
+
+			while (a[a.length - suffix - 1] == b[b.length - suffix - 1])
+			{
+				suffix++;
+			}
+			break;
+		}
+
+		return suffix;
+	}
+
+	/**
+	 * Cuts {@code source[start, end)} into regions of whole lines and runs the
+	 * first pass on each.
+	 */
+	private List<Region> split(byte[] source, int start, int end)
+	{
+		List<Region> split = new ArrayList<>();
+		int regionStart = start;
+		while (regionStart < end)
+		{
+			int regionEnd = Math.min(end, regionStart + REGION_SIZE);
+			while (regionEnd < end && source[regionEnd - 1] != '\n')
+			{
+				regionEnd++;
+			}
+
+			Region region = new Region();
+			region.start = regionStart;
+			region.end = regionEnd;
+			region.program = new Program();
+			region.diagnostics = new Diagnostics(maxErrors);
+
+			SymbolTable labels = new SymbolTable();
+			Parser parser = new Parser(ByteBuffer.wrap(source, regionStart, regionEnd - regionStart));
+			Assembler.firstPass(parser, labels, region.program, region.diagnostics);
+			region.lines = parser.getLineNumber();
+
+			region.labels = new byte[labels.size()][];
+			region.labelAddresses = labels.getAddresses();
+			for (int i = 0; i < region.labels.length; i++)
+			{
+				region.labels[i] = labels.getKeyBytes(i);
+			}
+
+			split.add(region);
+			regionStart = regionEnd;
+		}
+
+		return split;
+	}
+
+	/**
+	 * Places the regions, collects their errors and resolves the symbols,
+	 * either all of them or only those of the added regions.
+	 */
+	private Assembly merge(List<Region> removed, List<Region> added)
+	{
+		// before placing, the removed regions still have their old offsets
+		boolean sameLabels = labelTable != null && sameLabels(removed, added);
+
+		Diagnostics diagnostics = new Diagnostics(maxErrors);
+		int rom = 0;
+		int line = 0;
+		for (Region region : regions)
+		{
+			region.romOffset = rom;
+			region.lineOffset = line;
+			rom += region.program.size();
+			line += region.lines;
+
+			// a region that stopped early counted too few lines, but it also
+			// filled the cap so no later error is reported with a wrong line
+			for (AssemblerException e : region.diagnostics.getErrors())
+			{
+				diagnostics.add(e.moveLines(region.lineOffset));
+			}
+			if (region.diagnostics.isTruncated())
+			{
+				diagnostics.truncate();
+			}
+		}
+
+		Program program = new Program(Math.max(rom, 1));
+		if (!diagnostics.isEmpty())
+		{
+			labelTable = null;
+			symbolTable = labels();
+			for (Region region : regions)
+			{
+				program.append(region.program, region.lineOffset);
+			}
+			return new Assembly(program, symbolTable, diagnostics);
+		}
+
+		if (sameLabels && sameVariables(removed, added))
+		{
+			// same labels at the same addresses and the same variables in the
+			// same order, so every address is the same as before
+			for (Region region : added)
+			{
+				lookUp(region, symbolTable);
+				patch(region);
+			}
+		}
+		else
+		{
+			// the variables go into a table of their own so the labels stay as
+			// they are for the next update
+			labelTable = labels();
+			resolve(new SymbolTable(labelTable));
+		}
+
+		// the words are final, so the symbols need not be carried over
+		for (Region region : regions)
+		{
+			program.appendWords(region.program, region.lineOffset);
+		}
+		return new Assembly(program, symbolTable, diagnostics);
+	}
+
+	/**
+	 * Tells if the added regions define the same labels in the same order and
+	 * at the same addresses as the removed ones, relative to where they start,
+	 * and have as many instructions, so no label of the whole source moved.
+	 */
+	private static boolean sameLabels(List<Region> removed, List<Region> added)
+	{
+		int removedSize = 0;
+		int removedLabels = 0;
+		for (Region region : removed)
+		{
+			removedSize += region.program.size();
+			removedLabels += region.labels.length;
+		}
+		int addedSize = 0;
+		int addedLabels = 0;
+		for (Region region : added)
+		{
+			addedSize += region.program.size();
+			addedLabels += region.labels.length;
+		}
+		if (removedSize != addedSize || removedLabels != addedLabels)
+		{
+			return false;
+		}
+
+		// walk both label sequences side by side
+		int r = 0;
+		int a = 0;
+		int rLabel = 0;
+		int aLabel = 0;
+		int rRom = 0;
+		int aRom = 0;
+		for (int n = 0; n < removedLabels; n++)
+		{
+			while (rLabel == removed.get(r).labels.length)
+			{
+				rRom += removed.get(r).program.size();
+				rLabel = 0;
+				r++;
+			}
+			while (aLabel == added.get(a).labels.length)
+			{
+				aRom += added.get(a).program.size();
+				aLabel = 0;
+				a++;
+			}
+
+			Region rRegion = removed.get(r);
+			Region aRegion = added.get(a);
+			if (rRom + rRegion.labelAddresses[rLabel] != aRom + aRegion.labelAddresses[aLabel]
+					|| !Arrays.equals(rRegion.labels[rLabel], aRegion.labels[aLabel]))
+			{
+				return false;
+			}
+			rLabel++;
+			aLabel++;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return a table of the labels of all regions at their placed addresses,
+	 *         the first definition of a label wins
+	 */
+	private SymbolTable labels()
+	{
+		SymbolTable labels = new SymbolTable();
+		for (Region region : regions)
+		{
+			for (int i = 0; i < region.labels.length; i++)
+			{
+				byte[] label = region.labels[i];
+				labels.lookupOrInsert(label, 0, label.length, region.romOffset + region.labelAddresses[i]);
+			}
+		}
+
+		return labels;
+	}
+
+	/**
+	 * Tells if the symbols of the added regions that are not labels are the
+	 * same as those of the removed ones, in the order they first appear in
+	 * each region.
+	 */
+	private boolean sameVariables(List<Region> removed, List<Region> added)
+	{
+		List<byte[]> removedVariables = variables(removed);
+		List<byte[]> addedVariables = variables(added);
+		if (removedVariables.size() != addedVariables.size())
+		{
+			return false;
+		}
+
+		for (int i = 0; i < removedVariables.size(); i++)
+		{
+			if (!Arrays.equals(removedVariables.get(i), addedVariables.get(i)))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the symbols of the regions that are not labels, in the order
+	 *         they first appear in each region
+	 */
+	private List<byte[]> variables(List<Region> regions)
+	{
+		List<byte[]> variables = new ArrayList<>();
+		for (Region region : regions)
+		{
+			Program program = region.program;
+			for (int id = 0; id < program.getSymbolCount(); id++)
+			{
+				byte[] name = program.getSymbolKey(id);
+				if (labelTable.getAddress(name, 0, name.length) < 0)
+				{
+					variables.add(name);
+				}
+			}
+		}
+
+		return variables;
+	}
+
+	/**
+	 * Resolves every symbol of every region, allocating the variables in the
+	 * order they first appear just like {@link Assembler#secondPass}.
+	 */
+	private void resolve(SymbolTable labels)
+	{
+		int nextRAM = 16;
+		for (Region region : regions)
+		{
+			Program program = region.program;
+			region.addresses = new int[program.getSymbolCount()];
+
+			// symbol ids are handed out in first appearance order
+			for (int id = 0; id < program.getSymbolCount(); id++)
+			{
+				byte[] name = program.getSymbolKey(id);
+				int address = labels.lookupOrInsert(name, 0, name.length, nextRAM);
+				if (address < 0)
+				{
+					address = nextRAM;
+					nextRAM++;
+				}
+				region.addresses[id] = address;
+			}
+
+			patch(region);
+		}
+
+		symbolTable = labels;
+	}
+
+	/**
+	 * Looks up the addresses of the symbols of the region in a table that
+	 * already has all of them.
+	 */
+	private static void lookUp(Region region, SymbolTable symbolTable)
+	{
+		Program program = region.program;
+		region.addresses = new int[program.getSymbolCount()];
+		for (int id = 0; id < program.getSymbolCount(); id++)
+		{
+			byte[] name = program.getSymbolKey(id);
+			region.addresses[id] = symbolTable.getAddress(name, 0, name.length);
+		}
+	}
+
+	/**
+	 * Stores the resolved addresses into the words of the region.
+	 */
+	private static void patch(Region region)
+	{
+		Program program = region.program;
+		for (int i = 0; i < program.size(); i++)
+		{
+			int symbol = program.getSymbol(i);
+			if (symbol != Program.NO_SYMBOL)
+			{
+				program.setWord(i, (short) (region.addresses[symbol] & 0x7FFF));
+			}
+		}
+	}
+}
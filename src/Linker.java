@@ -0,0 +1,312 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import exceptions.AssemblerException;
+
+/**
+ * Links {@link ObjectModule}s into one program. The modules are laid out in
+ * the order given and resolved with the same rules as assembling their
+ * sources concatenated in that order: the first definition of a label wins,
+ * and the symbols no module defines become variables from RAM 16 in the order
+ * they are first used. Linking touches every word once to copy it and every
+ * site once to patch it, but hashes only the labels and imports of each
+ * module, never the source.
+ * <p>
+ * From the command line every .asm input is compiled to an object file next
+ * to it unless that file is newer than the source, so rebuilding a program
+ * only assembles the modules that changed. Object files can also be given
+ * directly.
+ *
+ * @author Boris
+ *
+ */
+public class Linker
+{
+	/**
+	 * The outcome of loading one module.
+	 */
+	private static class Result
+	{
+		Path			input;
+		ObjectModule	module;
+		boolean			compiled;
+		Diagnostics		diagnostics;
+		String			failure;
+	}
+
+	/**
+	 * Links the modules in the order given.
+	 *
+	 * @param modules
+	 *            - the modules to link.
+	 * @return the linked program, the source lines of its instructions are 0
+	 */
+	public static Assembly link(List<ObjectModule> modules)
+	{
+		int size = 0;
+		for (ObjectModule module : modules)
+		{
+			size += module.size();
+		}
+
+		Program program = new Program(Math.max(size, 1));
+		SymbolTable symbolTable = new SymbolTable();
+
+		// all labels go in first, as the first pass would have found them
+		int base = 0;
+		for (ObjectModule module : modules)
+		{
+			for (int id = 0; id < module.getLabelCount(); id++)
+			{
+				byte[] name = module.getLabel(id);
+				symbolTable.lookupOrInsert(name, 0, name.length, base + module.getLabelOffset(id));
+			}
+			program.addWords(module.getWords(), 0);
+			base += module.size();
+		}
+
+		int nextRAM = 16;
+		base = 0;
+		for (ObjectModule module : modules)
+		{
+			// a label defined by an earlier module too resolves to that one
+			for (int id = 0; id < module.getLabelCount(); id++)
+			{
+				byte[] name = module.getLabel(id);
+				patch(program, base, module.getLabelSites(id), symbolTable.getAddress(name, 0, name.length));
+			}
+
+			for (int id = 0; id < module.getImportCount(); id++)
+			{
+				byte[] name = module.getImport(id);
+				int address = symbolTable.lookupOrInsert(name, 0, name.length, nextRAM);
+				if (address < 0)
+				{
+					address = nextRAM;
+					nextRAM++;
+				}
+				patch(program, base, module.getImportSites(id), address);
+			}
+
+			base += module.size();
+		}
+
+		return new Assembly(program, symbolTable, new Diagnostics());
+	}
+
+	private static void patch(Program program, int base, int[] sites, int address)
+	{
+		for (int site : sites)
+		{
+			program.setWord(base + site, (short) (address & 0x7FFF));
+		}
+	}
+
+	/**
+	 * Loads or compiles all inputs of the options, links them into the link
+	 * output of the options and prints a report.
+	 *
+	 * @param options
+	 *            - the command line options.
+	 * @return true if every module loaded and the output was written
+	 */
+	public static boolean run(Options options)
+	{
+		ForkJoinPool pool = new ForkJoinPool(options.getJobs());
+		try
+		{
+			return run(options, pool, System.out, System.err);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Same as {@link #run(Options)} compiling on the given pool and printing
+	 * to the given streams, for linking on behalf of someone else (see
+	 * {@link Daemon}).
+	 *
+	 * @param options
+	 *            - the options of the request.
+	 * @param pool
+	 *            - the pool to compile on, left running.
+	 * @param out
+	 *            - where the report goes.
+	 * @param err
+	 *            - where the errors go.
+	 * @return true if every module loaded and the output was written
+	 */
+	public static boolean run(Options options, ForkJoinPool pool, PrintStream out, PrintStream err)
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			Code.getInstance();
+		}
+		catch (UncheckedIOException ex)
+		{
+			err.println("Translation Codes Not Found.");
+			return false;
+		}
+
+		List<Path> files;
+		try
+		{
+			files = Batch.expand(options.getInputFileNames());
+		}
+		catch (IOException ex)
+		{
+			err.println("Could not list input files: " + ex.getMessage());
+			return false;
+		}
+
+		List<ForkJoinTask<Result>> tasks = new ArrayList<>(files.size());
+		for (Path file : files)
+		{
+			tasks.add(pool.submit(() -> load(file, options.getMaxErrors())));
+		}
+
+		List<ObjectModule> modules = new ArrayList<>(tasks.size());
+		int compiled = 0;
+		boolean loaded = true;
+		for (ForkJoinTask<Result> task : tasks)
+		{
+			Result result = task.join();
+			loaded &= report(result, err);
+			modules.add(result.module);
+			compiled += result.compiled ? 1 : 0;
+		}
+		if (!loaded)
+		{
+			return false;
+		}
+
+		Assembly assembly = link(modules);
+
+		Path output = Paths.get(options.getLinkOutput());
+		try (WordWriter outputFile = new WordWriter(FileChannel.open(output,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING),
+				options.getFormat()))
+		{
+			outputFile.write(assembly.getWordBuffer());
+		}
+		catch (IOException ex)
+		{
+			err.println("Could not write output file " + output);
+			return false;
+		}
+
+		out.printf("Linked %d modules (%d compiled) into %s, %d words in %.1f ms%n", modules.size(), compiled,
+				output, assembly.getWordBuffer().remaining(), (System.nanoTime() - start) / 1e6);
+
+		return true;
+	}
+
+	/**
+	 * Reads the object file of the input, compiling the input first if it is
+	 * a source whose object file is missing or not newer than it.
+	 */
+	private static Result load(Path input, int maxErrors)
+	{
+		Result result = new Result();
+		result.input = input;
+
+		String name = input.toString();
+		if (name.endsWith(ObjectModule.EXTENSION))
+		{
+			try
+			{
+				result.module = ObjectModule.read(input);
+			}
+			catch (IOException ex)
+			{
+				result.failure = ex.getMessage();
+			}
+			return result;
+		}
+
+		String[] pathSections = Assembler.dissectPath(name);
+		Path object = Paths.get(pathSections[0] + pathSections[1] + ObjectModule.EXTENSION);
+		try
+		{
+			if (Files.exists(object)
+					&& Files.getLastModifiedTime(object).compareTo(Files.getLastModifiedTime(input)) > 0)
+			{
+				result.module = ObjectModule.read(object);
+				return result;
+			}
+		}
+		catch (IOException ex)
+		{
+			// compiled again below
+		}
+
+		try
+		{
+			result.diagnostics = new Diagnostics(maxErrors);
+			result.module = ObjectModule.compile(new Parser(name), result.diagnostics);
+			result.compiled = true;
+		}
+		catch (IOException | UncheckedIOException ex)
+		{
+			result.failure = "Could not open file \"" + input + "\".";
+			return result;
+		}
+
+		if (result.module != null)
+		{
+			try
+			{
+				result.module.write(object);
+			}
+			catch (IOException ex)
+			{
+				result.failure = "Could not write object file " + object;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Prints the errors of one module.
+	 *
+	 * @return true if the module loaded
+	 */
+	private static boolean report(Result result, PrintStream err)
+	{
+		if (result.failure != null)
+		{
+			err.println(result.input + ": " + result.failure);
+			return false;
+		}
+		else if (result.module == null)
+		{
+			err.println(result.input + ": " + result.diagnostics.size() + " errors");
+			for (AssemblerException e : result.diagnostics.getErrors())
+			{
+				err.println(e.parseFailDescriptor());
+			}
+			if (result.diagnostics.isTruncated())
+			{
+				err.println("Stopped after " + result.diagnostics.size() + " errors.");
+			}
+			return false;
+		}
+
+		return true;
+	}
+}
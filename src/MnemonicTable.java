@@ -0,0 +1,175 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+/**
+ * Immutable open addressing table from ascii mnemonics to the integer value of
+ * their binary translation. Lookups take a slice of a byte array so no string
+ * has to be created for the key, and since the table never changes after
+ * construction no locking is needed either.
+ * 
+ * @author Boris
+ *
+ */
+public class MnemonicTable
+{
+	private final byte[][]	keys;
+	private final int[]		values;
+	private final int		mask;
+
+	/**
+	 * Builds the table from mnemonic to binary string properties such as
+	 * {@code D+1=0011111}. The mnemonic {@code null} is also stored as the
+	 * empty mnemonic since that is how the parser reports an absent field.
+	 * 
+	 * @param codes
+	 *            - the mnemonics and their binary translation.
+	 * @throws NumberFormatException
+	 *             if a translation is not a binary number.
+	 */
+	public MnemonicTable(Properties codes)
+	{
+		this(codes.size());
+
+		for (String mnemonic : codes.stringPropertyNames())
+		{
+			put(mnemonic, Integer.parseInt(codes.getProperty(mnemonic), 2));
+		}
+	}
+
+	/**
+	 * Builds the table from parallel arrays of mnemonics and their
+	 * translation, such as the generated {@code CodeTables}. The mnemonic
+	 * {@code null} is also stored as the empty mnemonic.
+	 * 
+	 * @param mnemonics
+	 *            - the mnemonics.
+	 * @param codes
+	 *            - the translation of the mnemonic at the same index.
+	 */
+	public MnemonicTable(String[] mnemonics, int[] codes)
+	{
+		this(mnemonics.length);
+
+		for (int i = 0; i < mnemonics.length; i++)
+		{
+			put(mnemonics[i], codes[i]);
+		}
+	}
+
+	private MnemonicTable(int size)
+	{
+		// at most a quarter full keeps the probe sequences short
+		int capacity = Integer.highestOneBit(Math.max(size, 1) * 4) << 1;
+
+		keys = new byte[capacity][];
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Inserts the mnemonic, {@code null} also as the empty mnemonic.
+	 */
+	private void put(String mnemonic, int value)
+	{
+		put(mnemonic.getBytes(StandardCharsets.US_ASCII), value);
+		if (mnemonic.equals("null"))
+		{
+			put(new byte[0], value);
+		}
+	}
+
+	/**
+	 * Inserts or replaces the value of the key.
+	 */
+	private void put(byte[] key, int value)
+	{
+		int slot = hash(key, 0, key.length) & mask;
+		while (keys[slot] != null && !equals(keys[slot], key, 0, key.length))
+		{
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+	}
+
+	/**
+	 * Translates the mnemonic in {@code buffer[start, end)}.
+	 * 
+	 * @param buffer
+	 *            - ascii bytes containing the mnemonic.
+	 * @param start
+	 *            - start of the mnemonic.
+	 * @param end
+	 *            - end (exclusive) of the mnemonic.
+	 * @return the translation or -1 if no such translation exists.
+	 */
+	public int get(byte[] buffer, int start, int end)
+	{
+		int slot = hash(buffer, start, end) & mask;
+
+		byte[] key;
+		while ((key = keys[slot]) != null)
+		{
+			if (equals(key, buffer, start, end))
+			{
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Feeds every mnemonic and its translation to the digest, so two tables
+	 * built the same way give the same digest and tables with different
+	 * translations never do.
+	 * 
+	 * @param digest
+	 *            - the digest to update.
+	 */
+	public void digest(MessageDigest digest)
+	{
+		for (int slot = 0; slot < keys.length; slot++)
+		{
+			if (keys[slot] != null)
+			{
+				digest.update(keys[slot]);
+				digest.update((byte) '=');
+				digest.update((byte) (values[slot] >>> 8));
+				digest.update((byte) values[slot]);
+			}
+		}
+	}
+
+	private static int hash(byte[] buffer, int start, int end)
+	{
+		int hash = 0;
+		for (int i = start; i < end; i++)
+		{
+			hash = 31 * hash + buffer[i];
+		}
+
+		return hash ^ (hash >>> 7);
+	}
+
+	private static boolean equals(byte[] key, byte[] buffer, int start, int end)
+	{
+		if (key.length != end - start)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < key.length; i++)
+		{
+			if (key[i] != buffer[start + i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
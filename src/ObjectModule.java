@@ -0,0 +1,374 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A relocatable object module: one source assembled on its own, to be put
+ * together with others by the {@link Linker}. The words are encoded as if
+ * the module started at ROM 0. Every label the module defines is exported
+ * with its offset and the sites referring to it, which hold the offset until
+ * the linker relocates them. Symbols the module uses but doesn't define are
+ * imports with their sites, which hold 0 until the linker resolves them to a
+ * label of another module or a variable. Predefined symbols are resolved
+ * right away.
+ * <p>
+ * The file is big endian: {@link #MAGIC}, {@link #VERSION}, the number of
+ * words and the words, then the number of labels and for every label its
+ * name, offset and sites, then the number of imports and for every import its
+ * name and sites. A name is its length and ascii bytes, sites are their
+ * number and the word indexes.
+ *
+ * @author Boris
+ *
+ */
+public class ObjectModule
+{
+	public static final String	EXTENSION	= ".hobj";
+
+	// "HOBJ"
+	private static final int	MAGIC		= 0x484F424A;
+	private static final int	VERSION		= 1;
+
+	private final short[]		words;
+
+	// label -> offset, in definition order
+	private final SymbolMap		labels;
+	private final int[][]		labelSites;
+
+	// in first use order
+	private final SymbolMap		imports;
+	private final int[][]		importSites;
+
+	private ObjectModule(short[] words, SymbolMap labels, int[][] labelSites, SymbolMap imports, int[][] importSites)
+	{
+		this.words = words;
+		this.labels = labels;
+		this.labelSites = labelSites;
+		this.imports = imports;
+		this.importSites = importSites;
+	}
+
+	/**
+	 * Assembles the lines the parser has left into a module.
+	 *
+	 * @param parser
+	 *            - the parser to read the module from.
+	 * @param diagnostics
+	 *            - where the errors go.
+	 * @return the module or null if there were errors
+	 */
+	public static ObjectModule compile(Parser parser, Diagnostics diagnostics)
+	{
+		Program program = new Program();
+		SymbolTable symbolTable = new SymbolTable();
+		if (!Assembler.firstPass(parser, symbolTable, program, diagnostics))
+		{
+			return null;
+		}
+
+		// the table has only the labels apart from the predefined symbols
+		SymbolMap labels = new SymbolMap();
+		int[] addresses = symbolTable.getAddresses();
+		for (int i = 0; i < addresses.length; i++)
+		{
+			byte[] name = symbolTable.getKeyBytes(i);
+			labels.setValue(labels.intern(name, 0, name.length), addresses[i]);
+		}
+		SymbolMap imports = new SymbolMap();
+
+		// symbol id of the program -> label id, or -2 - import id, or -1 if
+		// the symbol is predefined
+		int[] targets = new int[program.getSymbolCount()];
+		int[] predefined = new int[targets.length];
+		for (int symbol = 0; symbol < targets.length; symbol++)
+		{
+			byte[] name = program.getSymbolKey(symbol);
+			int label = labels.find(name, 0, name.length);
+			if (label != SymbolMap.ABSENT)
+			{
+				targets[symbol] = label;
+			}
+			else if ((predefined[symbol] = symbolTable.getAddress(name, 0, name.length)) >= 0)
+			{
+				targets[symbol] = -1;
+			}
+			else
+			{
+				targets[symbol] = -2 - imports.intern(name, 0, name.length);
+			}
+		}
+
+		int[] labelCounts = new int[labels.size()];
+		int[] importCounts = new int[imports.size()];
+		for (int i = 0; i < program.size(); i++)
+		{
+			int symbol = program.getSymbol(i);
+			if (symbol == Program.NO_SYMBOL || targets[symbol] == -1)
+			{
+				continue;
+			}
+			if (targets[symbol] >= 0)
+			{
+				labelCounts[targets[symbol]]++;
+			}
+			else
+			{
+				importCounts[-2 - targets[symbol]]++;
+			}
+		}
+
+		int[][] labelSites = allocate(labelCounts);
+		int[][] importSites = allocate(importCounts);
+		short[] words = new short[program.size()];
+		for (int i = 0; i < words.length; i++)
+		{
+			int symbol = program.getSymbol(i);
+			if (symbol == Program.NO_SYMBOL)
+			{
+				words[i] = program.getWord(i);
+			}
+			else if (targets[symbol] == -1)
+			{
+				words[i] = (short) (predefined[symbol] & 0x7FFF);
+			}
+			else if (targets[symbol] >= 0)
+			{
+				int label = targets[symbol];
+				words[i] = (short) (labels.getValue(label) & 0x7FFF);
+				labelSites[label][labelSites[label].length - labelCounts[label]--] = i;
+			}
+			else
+			{
+				int id = -2 - targets[symbol];
+				importSites[id][importSites[id].length - importCounts[id]--] = i;
+			}
+		}
+
+		return new ObjectModule(words, labels, labelSites, imports, importSites);
+	}
+
+	private static int[][] allocate(int[] counts)
+	{
+		int[][] sites = new int[counts.length][];
+		for (int i = 0; i < counts.length; i++)
+		{
+			sites[i] = new int[counts[i]];
+		}
+
+		return sites;
+	}
+
+	/**
+	 * Reads a module written by {@link #write(Path)}.
+	 *
+	 * @param file
+	 *            - the object file.
+	 * @return the module
+	 * @throws IOException
+	 *             if the file could not be read or is not an object module of
+	 *             this version.
+	 */
+	public static ObjectModule read(Path file) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				throw new IOException(file + " is not an object module of version " + VERSION);
+			}
+
+			short[] words = new short[in.readInt()];
+			for (int i = 0; i < words.length; i++)
+			{
+				words[i] = in.readShort();
+			}
+
+			SymbolMap labels = new SymbolMap();
+			int[][] labelSites = new int[in.readInt()][];
+			for (int i = 0; i < labelSites.length; i++)
+			{
+				int id = readName(in, labels);
+				labels.setValue(id, in.readInt());
+				labelSites[id] = readSites(in, words.length);
+			}
+
+			SymbolMap imports = new SymbolMap();
+			int[][] importSites = new int[in.readInt()][];
+			for (int i = 0; i < importSites.length; i++)
+			{
+				importSites[readName(in, imports)] = readSites(in, words.length);
+			}
+
+			return new ObjectModule(words, labels, labelSites, imports, importSites);
+		}
+		catch (RuntimeException e)
+		{
+			// negative lengths, duplicate names, sites out of range
+			throw new IOException(file + " is corrupt", e);
+		}
+	}
+
+	private static int readName(DataInputStream in, SymbolMap names) throws IOException
+	{
+		byte[] name = new byte[in.readInt()];
+		in.readFully(name);
+
+		int size = names.size();
+		int id = names.intern(name, 0, name.length);
+		if (id != size)
+		{
+			throw new IllegalStateException("duplicate name");
+		}
+
+		return id;
+	}
+
+	private static int[] readSites(DataInputStream in, int words) throws IOException
+	{
+		int[] sites = new int[in.readInt()];
+		for (int i = 0; i < sites.length; i++)
+		{
+			sites[i] = in.readInt();
+			if (sites[i] < 0 || sites[i] >= words)
+			{
+				throw new IndexOutOfBoundsException("site " + sites[i]);
+			}
+		}
+
+		return sites;
+	}
+
+	/**
+	 * Writes the module to a file, replacing it if it exists.
+	 *
+	 * @param file
+	 *            - the object file.
+	 * @throws IOException
+	 *             if the file could not be written.
+	 */
+	public void write(Path file) throws IOException
+	{
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(words.length);
+			for (short word : words)
+			{
+				out.writeShort(word);
+			}
+
+			out.writeInt(labels.size());
+			for (int id = 0; id < labels.size(); id++)
+			{
+				writeName(out, labels.getKeyBytes(id));
+				out.writeInt(labels.getValue(id));
+				writeSites(out, labelSites[id]);
+			}
+
+			out.writeInt(imports.size());
+			for (int id = 0; id < imports.size(); id++)
+			{
+				writeName(out, imports.getKeyBytes(id));
+				writeSites(out, importSites[id]);
+			}
+		}
+	}
+
+	private static void writeName(DataOutputStream out, byte[] name) throws IOException
+	{
+		out.writeInt(name.length);
+		out.write(name);
+	}
+
+	private static void writeSites(DataOutputStream out, int[] sites) throws IOException
+	{
+		out.writeInt(sites.length);
+		for (int site : sites)
+		{
+			out.writeInt(site);
+		}
+	}
+
+	/**
+	 * @return the words as if the module started at ROM 0, must not be
+	 *         changed.
+	 */
+	public short[] getWords()
+	{
+		return words;
+	}
+
+	/**
+	 * @return the number of words
+	 */
+	public int size()
+	{
+		return words.length;
+	}
+
+	/**
+	 * @return the number of labels defined by the module
+	 */
+	public int getLabelCount()
+	{
+		return labels.size();
+	}
+
+	/**
+	 * @return the ascii name of the label with the id, must not be changed.
+	 */
+	public byte[] getLabel(int id)
+	{
+		return labels.getKeyBytes(id);
+	}
+
+	/**
+	 * @return the offset of the label with the id from the start of the
+	 *         module
+	 */
+	public int getLabelOffset(int id)
+	{
+		return labels.getValue(id);
+	}
+
+	/**
+	 * @return the indexes of the words referring to the label with the id,
+	 *         must not be changed.
+	 */
+	public int[] getLabelSites(int id)
+	{
+		return labelSites[id];
+	}
+
+	/**
+	 * @return the number of symbols the module uses but doesn't define
+	 */
+	public int getImportCount()
+	{
+		return imports.size();
+	}
+
+	/**
+	 * @return the ascii name of the import with the id, ids are in first use
+	 *         order. Must not be changed.
+	 */
+	public byte[] getImport(int id)
+	{
+		return imports.getKeyBytes(id);
+	}
+
+	/**
+	 * @return the indexes of the words referring to the import with the id,
+	 *         must not be changed.
+	 */
+	public int[] getImportSites(int id)
+	{
+		return importSites[id];
+	}
+}
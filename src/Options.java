@@ -0,0 +1,384 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Command line options of the {@link Assembler}.
+ * 
+ * @author Boris
+ *
+ */
+public class Options
+{
+	public static final String	USAGE	= "usage: java Assembler [--format=hack|bin|hex] [--jobs=n]"
+			+ " [--parallel | --pipeline | --single-pass | --external[=megabytes]]"
+			+ " [--optimize[=rule,...]] [--outline] [--max-errors=n] [--stats] [--watch]"
+			+ " [--cache=directory [--cache-size=megabytes]]"
+			+ " [file.asm | directory | glob]...\n"
+			+ "       java Assembler --link=output [--format=hack|bin|hex] [--jobs=n] [--max-errors=n]"
+			+ " [file.asm | file.hobj | directory | glob]...\n"
+			+ "       java Assembler --daemon=socket [--jobs=n]\n"
+			+ "       java Assembler --client=socket [options] [file.asm | directory | glob]...";
+
+	private List<String>		inputFileNames;
+	private OutputFormat		format;
+	private int					jobs;
+	private boolean				parallel;
+	private boolean				pipelined;
+	private boolean				singlePass;
+	private int					externalBudget;
+	private Peephole			optimizer;
+	private boolean				outline;
+	private int					maxErrors;
+	private boolean				stats;
+	private boolean				watch;
+	private String				cacheDirectory;
+	private long				cacheSize;
+	private String				linkOutput;
+	private String				daemonSocket;
+	private String				clientSocket;
+
+	private Options()
+	{
+		inputFileNames = new ArrayList<>();
+		format = OutputFormat.HACK;
+		jobs = Runtime.getRuntime().availableProcessors();
+		parallel = false;
+		pipelined = false;
+		singlePass = false;
+		externalBudget = 0;
+		optimizer = null;
+		outline = false;
+		maxErrors = Diagnostics.UNLIMITED;
+		stats = false;
+		watch = false;
+		cacheDirectory = null;
+		cacheSize = BuildCache.DEFAULT_SIZE;
+		linkOutput = null;
+		daemonSocket = null;
+		clientSocket = null;
+	}
+
+	/**
+	 * Parses the command line arguments.
+	 * 
+	 * @param args
+	 *            - the arguments given to main.
+	 * @return the parsed options
+	 * @throws IllegalArgumentException
+	 *             if an argument is not understood.
+	 */
+	public static Options parse(String[] args)
+	{
+		Options options = new Options();
+
+		for (String arg : args)
+		{
+			if (arg.startsWith("--format="))
+			{
+				options.format = OutputFormat.fromName(arg.substring("--format=".length()));
+			}
+			else if (arg.startsWith("--jobs="))
+			{
+				options.jobs = parsePositive(arg.substring("--jobs=".length()), arg);
+			}
+			else if (arg.equals("--parallel"))
+			{
+				options.parallel = true;
+			}
+			else if (arg.equals("--pipeline"))
+			{
+				options.pipelined = true;
+			}
+			else if (arg.equals("--single-pass"))
+			{
+				options.singlePass = true;
+			}
+			else if (arg.equals("--external"))
+			{
+				options.externalBudget = ExternalAssembly.DEFAULT_BUDGET;
+			}
+			else if (arg.startsWith("--external="))
+			{
+				int megabytes = parsePositive(arg.substring("--external=".length()), arg);
+				if (megabytes > Integer.MAX_VALUE >> 20)
+				{
+					throw new IllegalArgumentException("Expected at most " + (Integer.MAX_VALUE >> 20)
+							+ " megabytes in \"" + arg + "\"");
+				}
+				options.externalBudget = megabytes << 20;
+			}
+			else if (arg.equals("--optimize"))
+			{
+				options.optimizer = Peephole.standard();
+			}
+			else if (arg.startsWith("--optimize="))
+			{
+				options.optimizer = Peephole.parse(arg.substring("--optimize=".length()));
+			}
+			else if (arg.equals("--outline"))
+			{
+				options.outline = true;
+			}
+			else if (arg.startsWith("--max-errors="))
+			{
+				options.maxErrors = parsePositive(arg.substring("--max-errors=".length()), arg);
+			}
+			else if (arg.equals("--stats"))
+			{
+				options.stats = true;
+			}
+			else if (arg.equals("--watch"))
+			{
+				options.watch = true;
+			}
+			else if (arg.startsWith("--cache="))
+			{
+				options.cacheDirectory = arg.substring("--cache=".length());
+			}
+			else if (arg.startsWith("--cache-size="))
+			{
+				options.cacheSize = (long) parsePositive(arg.substring("--cache-size=".length()), arg) << 20;
+			}
+			else if (arg.startsWith("--link="))
+			{
+				options.linkOutput = arg.substring("--link=".length());
+			}
+			else if (arg.startsWith("--daemon="))
+			{
+				options.daemonSocket = arg.substring("--daemon=".length());
+			}
+			else if (arg.startsWith("--client="))
+			{
+				options.clientSocket = arg.substring("--client=".length());
+			}
+			else if (arg.startsWith("--"))
+			{
+				throw new IllegalArgumentException("Unknown option \"" + arg + "\"");
+			}
+			else
+			{
+				options.inputFileNames.add(arg);
+			}
+		}
+
+		int engines = (options.parallel ? 1 : 0) + (options.pipelined ? 1 : 0) + (options.singlePass ? 1 : 0)
+				+ (options.isExternal() ? 1 : 0);
+		if (engines > 1)
+		{
+			throw new IllegalArgumentException(
+					"Only one of --parallel, --pipeline, --single-pass and --external can be given");
+		}
+		boolean multiple = options.isBatch() || options.watch || options.linkOutput != null;
+		if (multiple && (options.parallel || options.pipelined || options.isExternal() || options.stats))
+		{
+			throw new IllegalArgumentException(
+					"--parallel, --pipeline, --external and --stats only work on a single file");
+		}
+		if (options.singlePass && (options.watch || options.linkOutput != null))
+		{
+			throw new IllegalArgumentException("--single-pass doesn't work with --watch or --link");
+		}
+
+		if (options.outline)
+		{
+			options.optimizer = (options.optimizer == null ? new Peephole(new ArrayList<>()) : options.optimizer)
+					.withOutlining();
+		}
+		if (options.optimizer != null && (options.parallel || options.pipelined || options.singlePass
+				|| options.isExternal() || options.watch || options.linkOutput != null))
+		{
+			throw new IllegalArgumentException("--optimize and --outline only work with the default"
+					+ " two pass assembly");
+		}
+
+		return options;
+	}
+
+	/**
+	 * Parses the value of an option that has to be a positive integer.
+	 */
+	private static int parsePositive(String value, String arg)
+	{
+		try
+		{
+			int number = Integer.parseInt(value);
+			if (number > 0)
+			{
+				return number;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			// same message as a non positive number
+		}
+
+		throw new IllegalArgumentException("Expected a positive number in \"" + arg + "\"");
+	}
+
+	/**
+	 * @return the first inputFileName or null if none was given
+	 */
+	public String getInputFileName()
+	{
+		return inputFileNames.isEmpty() ? null : inputFileNames.get(0);
+	}
+
+	/**
+	 * @return all inputFileNames (files, directories or globs) in the order
+	 *         they were given
+	 */
+	public List<String> getInputFileNames()
+	{
+		return Collections.unmodifiableList(inputFileNames);
+	}
+
+	/**
+	 * @return true if the inputs have to be assembled by {@link Batch},
+	 *         which is when there are several or one is a directory or glob
+	 */
+	public boolean isBatch()
+	{
+		return inputFileNames.size() > 1
+				|| (inputFileNames.size() == 1 && Batch.isMultiple(inputFileNames.get(0)));
+	}
+
+	/**
+	 * @return the number of files to assemble in parallel in batch mode, or
+	 *         the number of threads assembling a single file in parallel
+	 */
+	public int getJobs()
+	{
+		return jobs;
+	}
+
+	/**
+	 * @return true if a single file is split into chunks assembled in
+	 *         parallel by {@link ParallelAssembly}
+	 */
+	public boolean isParallel()
+	{
+		return parallel;
+	}
+
+	/**
+	 * @return true if a single file is assembled by the {@link Pipeline} with
+	 *         reading and writing on threads of their own
+	 */
+	public boolean isPipelined()
+	{
+		return pipelined;
+	}
+
+	/**
+	 * @return true if files are assembled by {@link SinglePass} with
+	 *         backpatching instead of two passes
+	 */
+	public boolean isSinglePass()
+	{
+		return singlePass;
+	}
+
+	/**
+	 * @return true if a single file is assembled by {@link ExternalAssembly}
+	 *         in bounded memory
+	 */
+	public boolean isExternal()
+	{
+		return externalBudget > 0;
+	}
+
+	/**
+	 * @return the bytes {@link ExternalAssembly} buffers instructions in
+	 */
+	public int getExternalBudget()
+	{
+		return externalBudget;
+	}
+
+	/**
+	 * @return the {@link Peephole} optimizer to run between the passes, also
+	 *         outlining with {@link Outliner} if asked to, or null to not
+	 *         optimize
+	 */
+	public Peephole getOptimizer()
+	{
+		return optimizer;
+	}
+
+	/**
+	 * @return the most errors to report per file before assembling stops,
+	 *         {@link Diagnostics#UNLIMITED} by default
+	 */
+	public int getMaxErrors()
+	{
+		return maxErrors;
+	}
+
+	/**
+	 * @return true if a JSON summary of the phases is printed
+	 */
+	public boolean isStats()
+	{
+		return stats;
+	}
+
+	/**
+	 * @return true if the inputs are assembled again whenever they change
+	 *         (see {@link Watch})
+	 */
+	public boolean isWatch()
+	{
+		return watch;
+	}
+
+	/**
+	 * @return the directory of the {@link BuildCache} or null if outputs are
+	 *         not cached
+	 */
+	public String getCacheDirectory()
+	{
+		return cacheDirectory;
+	}
+
+	/**
+	 * @return the size in bytes the {@link BuildCache} is trimmed to
+	 */
+	public long getCacheSize()
+	{
+		return cacheSize;
+	}
+
+	/**
+	 * @return the file the {@link Linker} links the inputs into, or null to
+	 *         assemble them instead
+	 */
+	public String getLinkOutput()
+	{
+		return linkOutput;
+	}
+
+	/**
+	 * @return the socket to serve requests on as a {@link Daemon} or null
+	 */
+	public String getDaemonSocket()
+	{
+		return daemonSocket;
+	}
+
+	/**
+	 * @return the socket of the {@link Daemon} to send the request to or null
+	 */
+	public String getClientSocket()
+	{
+		return clientSocket;
+	}
+
+	/**
+	 * @return the output format
+	 */
+	public OutputFormat getFormat()
+	{
+		return format;
+	}
+}
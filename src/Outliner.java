@@ -0,0 +1,482 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shrinks a program by moving repeated instruction sequences into shared
+ * routines, run between the passes like the {@link Peephole} rules. Windows
+ * of every length in {@link #LENGTHS}, longest first, are grouped by a
+ * rolling hash and sorted, and the groups that save the most words are
+ * outlined first. Every occurrence becomes a call
+ *
+ * <pre>
+ * &#64;return  D=A  &#64;routine  0;JMP
+ * </pre>
+ *
+ * and every routine, appended after the program, saves the return address
+ * in a scratch register, runs the sequence and jumps back:
+ *
+ * <pre>
+ * &#64;R15  M=D  sequence  &#64;R15  A=M  0;JMP
+ * </pre>
+ *
+ * The call clobbers A and D and the return clobbers A, so a sequence is only
+ * outlined where it starts by loading A, writes D before reading it, and is
+ * followed by an A instruction. It can't contain a jump or a label other
+ * than at its start. The scratch register is the first of R15, R14 and R13
+ * the program never reads or writes memory at, nothing is outlined if it
+ * uses all three. Like the peephole rules this relies on labels being the
+ * only jump targets, and on the program not reaching the scratch register
+ * through a computed address. Nothing is outlined either if a call or a
+ * routine would end up past the {@link #ROM_SIZE} an A instruction can reach.
+ * <p>
+ * The variables get their RAM addresses here, in the order the program used
+ * them before outlining, since the second pass would otherwise meet the
+ * first use of some of them in a routine at the end.
+ *
+ * @author Boris
+ *
+ */
+public class Outliner
+{
+	// the addresses an A instruction can load
+	public static final int		ROM_SIZE			= 1 << 15;
+
+	// window lengths tried, a call has to be shorter than the sequence
+	private static final int[]	LENGTHS				= { 64, 48, 32, 24, 16, 12, 10, 8, 7, 6, 5 };
+
+	private static final int[]	SCRATCH_REGISTERS	= { 15, 14, 13 };
+
+	// @return D=A @routine 0;JMP
+	private static final int	CALL_WORDS			= 4;
+	// @R15 M=D
+	private static final int	PROLOGUE_WORDS		= 2;
+	// @R15 A=M 0;JMP
+	private static final int	EPILOGUE_WORDS		= 3;
+
+	// comp and dest fields, see Code
+	private static final short	D_EQUALS_A			= Code.encodeC(0b0110000, 0b010, 0);
+	private static final short	M_EQUALS_D			= Code.encodeC(0b0001100, 0b001, 0);
+	private static final short	A_EQUALS_M			= Code.encodeC(0b1110000, 0b100, 0);
+	private static final short	JUMP				= Code.encodeC(0b0101010, 0, 0b111);
+
+	private static final long	HASH_BASE			= 0x9E3779B97F4A7C15L;
+
+	private final Program		program;
+	private final int			size;
+	// word and symbol of every instruction
+	private final long[]		codes;
+	// prefix counts of the instructions that can't be in a sequence and of
+	// the instructions a label points at
+	private final int[]			jumps;
+	private final int[]			labels;
+	// the first instruction at or after the index that reads D and writes D
+	private final int[]			nextRead;
+	private final int[]			nextWrite;
+
+	private final boolean[]		taken;
+	// the routine called at the start of every outlined occurrence or -1
+	private final int[]			calls;
+	// start of the copy of the sequence and length of every routine
+	private final List<int[]>	routines;
+
+	private Outliner(Program program, SymbolTable symbolTable)
+	{
+		this.program = program;
+		size = program.size();
+
+		codes = new long[size];
+		jumps = new int[size + 1];
+		for (int i = 0; i < size; i++)
+		{
+			short word = program.getWord(i);
+			codes[i] = (long) (program.getSymbol(i) + 1) << 16 | (word & 0xFFFF);
+			jumps[i + 1] = jumps[i] + (!isA(word) && (word & Peephole.JUMP_MASK) != 0 ? 1 : 0);
+		}
+
+		boolean[] labelled = new boolean[size + 1];
+		for (int address : symbolTable.getAddresses())
+		{
+			labelled[address] = true;
+		}
+		labels = new int[size + 1];
+		for (int i = 0; i < size; i++)
+		{
+			labels[i + 1] = labels[i] + (labelled[i] ? 1 : 0);
+		}
+
+		nextRead = new int[size + 1];
+		nextWrite = new int[size + 1];
+		nextRead[size] = nextWrite[size] = size;
+		for (int i = size - 1; i >= 0; i--)
+		{
+			short word = program.getWord(i);
+			// the ALU ignores D if zx is set
+			nextRead[i] = !isA(word) && (word & 1 << 11) == 0 ? i : nextRead[i + 1];
+			nextWrite[i] = !isA(word) && (word & 0b010 << 3) != 0 ? i : nextWrite[i + 1];
+		}
+
+		taken = new boolean[size];
+		calls = new int[size];
+		Arrays.fill(calls, -1);
+		routines = new ArrayList<>();
+	}
+
+	/**
+	 * Outlines the repeated sequences of a program the first pass has built
+	 * and moves the labels.
+	 *
+	 * @param program
+	 *            - the program of the first pass, changed in place.
+	 * @param symbolTable
+	 *            - the labels of the first pass, changed in place and given
+	 *            the variables if anything is outlined.
+	 * @return the words saved and the cycles every outlined sequence costs
+	 *         on top if it runs once, as negative savings. Nothing is saved
+	 *         if the outlined program would not fit the ROM.
+	 */
+	public static Peephole.Savings outline(Program program, SymbolTable symbolTable)
+	{
+		int register = scratchRegister(program);
+		if (register < 0)
+		{
+			return new Peephole.Savings(0, 0);
+		}
+
+		Outliner outliner = new Outliner(program, symbolTable);
+		for (int length : LENGTHS)
+		{
+			outliner.outline(length);
+		}
+		if (outliner.routines.isEmpty())
+		{
+			return new Peephole.Savings(0, 0);
+		}
+
+		return outliner.rewrite(symbolTable, register);
+	}
+
+	/**
+	 * @return the first scratch register the program never accesses memory
+	 *         at, or -1 if it accesses all of them
+	 */
+	private static int scratchRegister(Program program)
+	{
+		SymbolTable predefined = new SymbolTable();
+		boolean[] used = new boolean[16];
+
+		// the address A holds if it is a register, else -1
+		int register = -1;
+		for (int i = 0; i < program.size(); i++)
+		{
+			short word = program.getWord(i);
+			if (isA(word))
+			{
+				int symbol = program.getSymbol(i);
+				if (symbol == Program.NO_SYMBOL)
+				{
+					register = word < used.length ? word : -1;
+				}
+				else
+				{
+					byte[] name = program.getSymbolKey(symbol);
+					register = predefined.getAddress(name, 0, name.length);
+					register = register < used.length ? register : -1;
+				}
+				continue;
+			}
+
+			// reads M (a is set) or writes M
+			if (register >= 0 && ((word & 1 << 12) != 0 || (word & Peephole.DEST_M) != 0))
+			{
+				used[register] = true;
+			}
+			if ((word & Peephole.DEST_A) != 0)
+			{
+				register = -1;
+			}
+		}
+
+		for (int candidate : SCRATCH_REGISTERS)
+		{
+			if (!used[candidate])
+			{
+				return candidate;
+			}
+		}
+
+		return -1;
+	}
+
+	private static boolean isA(short word)
+	{
+		return (word & 0x8000) == 0;
+	}
+
+	/**
+	 * Outlines the groups of equal windows of the length that save words,
+	 * the ones saving the most first.
+	 */
+	private void outline(int length)
+	{
+		if (length >= size)
+		{
+			return;
+		}
+
+		// hash in the high bits, position in the low bits, so sorting groups
+		// equal hashes in position order
+		int positionBits = 64 - Long.numberOfLeadingZeros(size);
+		long positionMask = (1L << positionBits) - 1;
+
+		long power = 1;
+		for (int i = 1; i < length; i++)
+		{
+			power *= HASH_BASE;
+		}
+
+		long[] keys = new long[size];
+		int count = 0;
+		long hash = 0;
+		for (int i = 0; i < length; i++)
+		{
+			hash = hash * HASH_BASE + codes[i];
+		}
+		for (int i = 0; i + length < size; i++)
+		{
+			if (isOutlinable(i, length))
+			{
+				keys[count++] = hash & ~positionMask | i;
+			}
+			hash = (hash - codes[i] * power) * HASH_BASE + codes[i + length];
+		}
+		Arrays.sort(keys, 0, count);
+
+		// start and end in the keys and words saved of every group
+		List<long[]> groups = new ArrayList<>();
+		for (int start = 0, end; start < count; start = end)
+		{
+			end = start + 1;
+			while (end < count && (keys[end] & ~positionMask) == (keys[start] & ~positionMask))
+			{
+				end++;
+			}
+			if (end - start > 1)
+			{
+				int saved = saved(keys, start, end, positionMask, length, false);
+				if (saved > 0)
+				{
+					groups.add(new long[] { start, end, saved });
+				}
+			}
+		}
+		groups.sort((a, b) -> Long.compare(b[2], a[2]));
+
+		// earlier groups may have taken occurrences of later ones
+		for (long[] group : groups)
+		{
+			if (saved(keys, (int) group[0], (int) group[1], positionMask, length, false) > 0)
+			{
+				saved(keys, (int) group[0], (int) group[1], positionMask, length, true);
+			}
+		}
+	}
+
+	/**
+	 * Picks the occurrences of a group that don't overlap and aren't taken,
+	 * optionally outlining them.
+	 *
+	 * @return the words outlining them would save
+	 */
+	private int saved(long[] keys, int start, int end, long positionMask, int length, boolean outline)
+	{
+		int first = -1;
+		int occurrences = 0;
+		int last = -length;
+		for (int k = start; k < end; k++)
+		{
+			int position = (int) (keys[k] & positionMask);
+			if (position < last + length || isTaken(position, length)
+					|| (first >= 0 && !isEqual(first, position, length)))
+			{
+				continue;
+			}
+
+			if (first < 0)
+			{
+				first = position;
+			}
+			occurrences++;
+			last = position;
+
+			if (outline)
+			{
+				Arrays.fill(taken, position, position + length, true);
+				calls[position] = routines.size();
+			}
+		}
+
+		if (outline)
+		{
+			routines.add(new int[] { first, length });
+		}
+
+		return (occurrences - 1) * length - occurrences * CALL_WORDS - PROLOGUE_WORDS - EPILOGUE_WORDS;
+	}
+
+	/**
+	 * @return true if the window can be replaced by a call
+	 */
+	private boolean isOutlinable(int start, int length)
+	{
+		int end = start + length;
+		return isA(program.getWord(start)) && isA(program.getWord(end)) && jumps[end] == jumps[start]
+				&& labels[end] == labels[start + 1] && nextWrite[start] < Math.min(end, nextRead[start]);
+	}
+
+	private boolean isTaken(int start, int length)
+	{
+		for (int i = start; i < start + length; i++)
+		{
+			if (taken[i])
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private boolean isEqual(int one, int other, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			if (codes[one + i] != codes[other + i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Replaces the program by one with calls instead of the outlined
+	 * occurrences and the routines after it, unless it would not fit the
+	 * ROM.
+	 */
+	private Peephole.Savings rewrite(SymbolTable symbolTable, int register)
+	{
+		// where every instruction and label goes
+		int[] addresses = new int[size + 1];
+		int address = 0;
+		int callCount = 0;
+		for (int i = 0; i < size;)
+		{
+			addresses[i] = address;
+			if (calls[i] >= 0)
+			{
+				address += CALL_WORDS;
+				i += routines.get(calls[i])[1];
+				callCount++;
+			}
+			else
+			{
+				address++;
+				i++;
+			}
+		}
+		addresses[size] = address;
+
+		int[] routineAddresses = new int[routines.size()];
+		for (int r = 0; r < routines.size(); r++)
+		{
+			routineAddresses[r] = address;
+			address += PROLOGUE_WORDS + routines.get(r)[1] + EPILOGUE_WORDS;
+		}
+		if (address > ROM_SIZE)
+		{
+			// the calls can't reach the routines
+			return new Peephole.Savings(0, 0);
+		}
+
+		Program outlined = new Program(Math.max(address, 1));
+		for (int i = 0; i < size;)
+		{
+			int line = program.getLine(i);
+			if (calls[i] >= 0)
+			{
+				outlined.addWord((short) (addresses[i] + CALL_WORDS), line);
+				outlined.addWord(D_EQUALS_A, line);
+				outlined.addWord((short) routineAddresses[calls[i]], line);
+				outlined.addWord(JUMP, line);
+				i += routines.get(calls[i])[1];
+			}
+			else
+			{
+				copy(outlined, i);
+				i++;
+			}
+		}
+
+		for (int[] routine : routines)
+		{
+			int line = program.getLine(routine[0]);
+			outlined.addWord((short) register, line);
+			outlined.addWord(M_EQUALS_D, line);
+			for (int i = routine[0]; i < routine[0] + routine[1]; i++)
+			{
+				copy(outlined, i);
+			}
+			outlined.addWord((short) register, line);
+			outlined.addWord(A_EQUALS_M, line);
+			outlined.addWord(JUMP, line);
+		}
+
+		symbolTable.relocate(addresses);
+		allocateVariables(symbolTable);
+		program.replace(outlined);
+
+		int callCycles = CALL_WORDS + PROLOGUE_WORDS + EPILOGUE_WORDS;
+		return new Peephole.Savings(size - address, -(long) callCount * callCycles);
+	}
+
+	/**
+	 * Adds the variables from RAM 16 in the order the second pass would have
+	 * found them in the program before outlining.
+	 */
+	private void allocateVariables(SymbolTable symbolTable)
+	{
+		boolean[] seen = new boolean[program.getSymbolCount()];
+		int nextRAM = 16;
+		for (int i = 0; i < size; i++)
+		{
+			int symbol = program.getSymbol(i);
+			if (symbol == Program.NO_SYMBOL || seen[symbol])
+			{
+				continue;
+			}
+
+			seen[symbol] = true;
+			byte[] name = program.getSymbolKey(symbol);
+			if (symbolTable.lookupOrInsert(name, 0, name.length, nextRAM) < 0)
+			{
+				nextRAM++;
+			}
+		}
+	}
+
+	private void copy(Program outlined, int index)
+	{
+		int symbol = program.getSymbol(index);
+		if (symbol == Program.NO_SYMBOL)
+		{
+			outlined.addWord(program.getWord(index), program.getLine(index));
+		}
+		else
+		{
+			byte[] name = program.getSymbolKey(symbol);
+			outlined.addSymbol(name, 0, name.length, program.getLine(index));
+		}
+	}
+}
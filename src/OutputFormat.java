@@ -0,0 +1,58 @@
+/**
+ * Formats the assembled machine words can be written in.
+ * 
+ * @author Boris
+ *
+ */
+public enum OutputFormat
+{
+	/**
+	 * One line of 16 ascii bits per word.
+	 */
+	HACK(".hack"),
+	/**
+	 * Raw image of big endian 16 bit words.
+	 */
+	BIN(".bin"),
+	/**
+	 * Intel HEX records of the big endian image, 16 bytes per record.
+	 */
+	HEX(".hex");
+
+	private final String extension;
+
+	private OutputFormat(String extension)
+	{
+		this.extension = extension;
+	}
+
+	/**
+	 * @return the file extension (including the dot) of the format
+	 */
+	public String getExtension()
+	{
+		return extension;
+	}
+
+	/**
+	 * Looks up a format by its case insensitive name.
+	 * 
+	 * @param name
+	 *            - name of the format such as {@code hex}.
+	 * @return the format
+	 * @throws IllegalArgumentException
+	 *             if there is no format with that name.
+	 */
+	public static OutputFormat fromName(String name)
+	{
+		for (OutputFormat format : values())
+		{
+			if (format.name().equalsIgnoreCase(name))
+			{
+				return format;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown output format \"" + name + "\"");
+	}
+}
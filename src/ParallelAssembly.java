@@ -0,0 +1,293 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import exceptions.AssemblerException;
+
+/**
+ * Assembles one large source on several cores. The source is split at line
+ * boundaries into chunks which run the first pass in parallel, each with its
+ * own program and label table. Label addresses are then made global with a
+ * prefix sum over the chunk sizes, the symbols are resolved in parallel and
+ * only the variables are allocated sequentially (in chunk order, then in
+ * first appearance order within a chunk) so RAM is handed out exactly like
+ * {@link Assembler#secondPass(Program, SymbolTable)} does.
+ * 
+ * @author Boris
+ *
+ */
+public class ParallelAssembly
+{
+	// smaller chunks are not worth a task of their own
+	private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * The state of one chunk of the source.
+	 */
+	private static class Chunk
+	{
+		final ByteBuffer				source;
+		final Program					program		= new Program();
+		final SymbolTable				labels		= new SymbolTable();
+		final Diagnostics				diagnostics;
+		int								lines;
+		int								romOffset;
+		int								lineOffset;
+
+		// address of every local symbol id, -1 while it is a variable
+		int[]							addresses;
+		// the local ids of the variables in first appearance order
+		int[]							variables;
+		int								variableCount;
+
+		Chunk(ByteBuffer source, int maxErrors)
+		{
+			this.source = source;
+			this.diagnostics = new Diagnostics(maxErrors);
+		}
+	}
+
+	/**
+	 * Assembles the ascii hack asm between the position and the limit of the
+	 * buffer on the pool. The result is identical to
+	 * {@link Assembly#assemble(ByteBuffer)}.
+	 * 
+	 * @param source
+	 *            - the hack asm source.
+	 * @param pool
+	 *            - the pool to run the chunks on.
+	 * @return the assembled program
+	 */
+	public static Assembly assemble(ByteBuffer source, ForkJoinPool pool)
+	{
+		return assemble(source, pool, Diagnostics.UNLIMITED);
+	}
+
+	/**
+	 * Assembles like {@link #assemble(ByteBuffer, ForkJoinPool)} reporting at
+	 * most the given number of errors. Every chunk stops at the cap on its
+	 * own, so the errors reported are the first ones in source order.
+	 * 
+	 * @param source
+	 *            - the hack asm source.
+	 * @param pool
+	 *            - the pool to run the chunks on.
+	 * @param maxErrors
+	 *            - the most errors to report, at least 1.
+	 * @return the assembled program
+	 */
+	public static Assembly assemble(ByteBuffer source, ForkJoinPool pool, int maxErrors)
+	{
+		return assemble(source, pool, maxErrors, Stats.disabled());
+	}
+
+	/**
+	 * Assembles like {@link #assemble(ByteBuffer, ForkJoinPool, int)} timing
+	 * and counting the chunks together in the stats. The allocations are left
+	 * out, they happen on the pool.
+	 * 
+	 * @param source
+	 *            - the hack asm source.
+	 * @param pool
+	 *            - the pool to run the chunks on.
+	 * @param maxErrors
+	 *            - the most errors to report, at least 1.
+	 * @param stats
+	 *            - where the assembly is recorded.
+	 * @return the assembled program
+	 */
+	public static Assembly assemble(ByteBuffer source, ForkJoinPool pool, int maxErrors, Stats stats)
+	{
+		Code.getInstance();
+
+		stats.begin(Stats.Phase.ASSEMBLE);
+
+		List<Chunk> chunks = split(source, pool.getParallelism() * 4, maxErrors);
+
+		run(pool, chunks, chunk ->
+		{
+			Parser parser = new Parser(chunk.source);
+			Assembler.firstPass(parser, chunk.labels, chunk.program, chunk.diagnostics);
+			chunk.lines = parser.getLineNumber();
+		});
+
+		// prefix sums of the sizes give every chunk its place in the program,
+		// the first definition of a label wins just like in a single pass
+		SymbolTable symbolTable = new SymbolTable();
+		Diagnostics diagnostics = new Diagnostics(maxErrors);
+		int rom = 0;
+		int line = 0;
+		for (Chunk chunk : chunks)
+		{
+			chunk.romOffset = rom;
+			chunk.lineOffset = line;
+			rom += chunk.program.size();
+			line += chunk.lines;
+
+			int[] addresses = chunk.labels.getAddresses();
+			for (int i = 0; i < addresses.length; i++)
+			{
+				byte[] label = chunk.labels.getKeyBytes(i);
+				symbolTable.lookupOrInsert(label, 0, label.length, chunk.romOffset + addresses[i]);
+			}
+
+			// a chunk that stopped early counted too few lines, but it also
+			// filled the cap so no later error is reported with a wrong line
+			for (AssemblerException e : chunk.diagnostics.getErrors())
+			{
+				diagnostics.add(e.moveLines(chunk.lineOffset));
+			}
+			if (chunk.diagnostics.isTruncated())
+			{
+				diagnostics.truncate();
+			}
+		}
+
+		int labels = symbolTable.size();
+		int variables = -1;
+		if (diagnostics.isEmpty())
+		{
+			// the symbol table is only read here
+			run(pool, chunks, chunk -> resolveLabels(chunk, symbolTable));
+
+			int nextRAM = 16;
+			for (Chunk chunk : chunks)
+			{
+				for (int i = 0; i < chunk.variableCount; i++)
+				{
+					byte[] name = chunk.program.getSymbolKey(chunk.variables[i]);
+					int address = symbolTable.lookupOrInsert(name, 0, name.length, nextRAM);
+					if (address < 0)
+					{
+						address = nextRAM;
+						nextRAM++;
+					}
+					chunk.addresses[chunk.variables[i]] = address;
+				}
+			}
+
+			run(pool, chunks, ParallelAssembly::patch);
+			variables = nextRAM - 16;
+		}
+
+		Program program = new Program();
+		for (Chunk chunk : chunks)
+		{
+			program.append(chunk.program, chunk.lineOffset);
+		}
+		stats.endOnPool(line, program.size());
+		stats.count(line, program.size(), labels, variables);
+
+		return new Assembly(program, symbolTable, diagnostics);
+	}
+
+	/**
+	 * Splits the source into about the given number of chunks, each ending
+	 * right after a newline (except the last).
+	 */
+	private static List<Chunk> split(ByteBuffer source, int count, int maxErrors)
+	{
+		int start = source.position();
+		int end = source.limit();
+		count = Math.max(1, Math.min(count, (end - start) / MIN_CHUNK_SIZE));
+
+		List<Chunk> chunks = new ArrayList<>(count);
+		int chunkStart = start;
+		for (int i = 1; i <= count; i++)
+		{
+			int chunkEnd = i == count ? end : Math.max(chunkStart, start + (int) ((long) (end - start) * i / count));
+			while (chunkEnd < end && chunkEnd > chunkStart && source.get(chunkEnd - 1) != '\n')
+			{
+				chunkEnd++;
+			}
+
+			ByteBuffer slice = source.duplicate();
+			slice.position(chunkStart).limit(chunkEnd);
+			chunks.add(new Chunk(slice.slice(), maxErrors));
+			chunkStart = chunkEnd;
+		}
+
+		return chunks;
+	}
+
+	/**
+	 * Looks up the labels and predefined symbols of the chunk and lists the
+	 * remaining symbols, the variables, in the order they first appear.
+	 */
+	private static void resolveLabels(Chunk chunk, SymbolTable symbolTable)
+	{
+		Program program = chunk.program;
+		int count = program.getSymbolCount();
+		chunk.addresses = new int[count];
+		chunk.variables = new int[count];
+
+		// symbol ids are handed out in first appearance order
+		for (int id = 0; id < count; id++)
+		{
+			byte[] name = program.getSymbolKey(id);
+			chunk.addresses[id] = symbolTable.getAddress(name, 0, name.length);
+			if (chunk.addresses[id] < 0)
+			{
+				chunk.variables[chunk.variableCount++] = id;
+			}
+		}
+	}
+
+	/**
+	 * Stores the resolved addresses into the words of the chunk.
+	 */
+	private static void patch(Chunk chunk)
+	{
+		Program program = chunk.program;
+		for (int i = 0; i < program.size(); i++)
+		{
+			int symbol = program.getSymbol(i);
+			if (symbol != Program.NO_SYMBOL)
+			{
+				program.setWord(i, (short) (chunk.addresses[symbol] & 0x7FFF));
+			}
+		}
+	}
+
+	/**
+	 * Runs the step on every chunk on the pool and waits for all of them.
+	 */
+	private static void run(ForkJoinPool pool, List<Chunk> chunks, Consumer<Chunk> step)
+	{
+		List<Callable<Void>> tasks = new ArrayList<>(chunks.size());
+		for (Chunk chunk : chunks)
+		{
+			tasks.add(() ->
+			{
+				step.accept(chunk);
+				return null;
+			});
+		}
+
+		try
+		{
+			for (Future<Void> done : pool.invokeAll(tasks))
+			{
+				done.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while assembling", e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+			{
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
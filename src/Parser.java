@@ -1,11 +1,19 @@
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
-import java.util.Scanner;
+import java.nio.file.StandardOpenOption;
 
 import exceptions.AssemblerExceptionBuilder;
+import exceptions.ErrorCode;
 
 /**
- * Class for parsing a hack asm file.
+ * Class for parsing a hack asm file. Hack asm is plain ascii so the input is
+ * never decoded, the lexer works on the bytes of a memory mapped window of
+ * the file (or of a reusable buffer when reading from a stream).
  * 
  * @author Boris
  *
@@ -17,49 +25,102 @@ public class Parser
 		NONE, A, C, LABEL,
 	}
 
-	private Scanner		inputFile;
-	private int			lineNumber;
-	private String		rawLine;
+	// files are mapped in windows of this size, a line crossing the end of a
+	// window makes the next window start at that line
+	private static final long	MAP_WINDOW		= 1L << 30;
+	private static final int	STREAM_BUFFER	= 1 << 16;
 
-	private String		cleanLine;
-	private CommandType	commandType;
-	private String		symbol;
-	private String		destMnemonic;
-	private String		compMnemonic;
-	private String		jumpMnemonic;
+	// exactly one of file and channel is set unless parsing a given buffer
+	private FileChannel			file;
+	private long				windowStart;
+	private ReadableByteChannel	channel;
+	private ByteBuffer			input;
+
+	private int					lineNumber;
+	private int					rawStart, rawEnd;
+
+	// the line without whitespace and comments, filled by lex()
+	private byte[]				line;
+	private int					lineLength;
+
+	// spans into line, an empty span means the field is absent
+	private CommandType			commandType;
+	private int					symbolStart, symbolEnd;
+	private int					destStart, destEnd;
+	private int					compStart, compEnd;
+	private int					jumpStart, jumpEnd;
 
 	/**
-	 * Parses a hack asm file.
+	 * Parses a hack asm file by memory mapping it.
 	 * 
 	 * @param inputFilePath - path to the hack asm file.
+	 * @throws IOException
+	 *             if the file could not be opened or mapped.
 	 */
-	public Parser(String inputFilePath)
+	public Parser(String inputFilePath) throws IOException
 	{
-		lineNumber = 0;
+		this();
 
+		file = FileChannel.open(Paths.get(inputFilePath), StandardOpenOption.READ);
 		try
 		{
-			inputFile = new Scanner(Paths.get(inputFilePath));
+			windowStart = 0;
+			input = file.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(file.size(), MAP_WINDOW));
 		}
 		catch (IOException e)
 		{
-			System.err.println("Could not open file \"" + inputFilePath + "\".");
-			System.exit(2); // 2 = could not open file
+			file.close();
+			throw e;
 		}
 	}
 
 	/**
-	 * Tests to see if you can call {@link #advance()}. Will close the stream if
+	 * Parses hack asm read from a channel (for instance standard input) through
+	 * a reusable direct buffer.
+	 * 
+	 * @param channel
+	 *            - the channel to read from, closed once all lines are read.
+	 */
+	public Parser(ReadableByteChannel channel)
+	{
+		this();
+
+		this.channel = channel;
+		input = ByteBuffer.allocateDirect(STREAM_BUFFER);
+		input.flip();
+	}
+
+	/**
+	 * Parses the hack asm between the position and the limit of the buffer.
+	 * The buffer's position is advanced as lines are parsed.
+	 * 
+	 * @param buffer
+	 *            - the hack asm as ascii bytes.
+	 */
+	public Parser(ByteBuffer buffer)
+	{
+		this();
+
+		input = buffer;
+	}
+
+	private Parser()
+	{
+		lineNumber = 0;
+		line = new byte[128];
+	}
+
+	/**
+	 * Tests to see if you can call {@link #advance()}. Will close the input if
 	 * there are no more lines to parse
 	 * 
 	 * @return True if there are more commands to process in the file
 	 */
 	public boolean hasMoreCommands()
 	{
-		if (!inputFile.hasNextLine())
+		if (!input.hasRemaining() && !refill())
 		{
-			// should probably provide a close method
-			inputFile.close();
+			close();
 			return false;
 		}
 		else
@@ -71,206 +132,340 @@ public class Parser
 	/**
 	 * Advanced the parser, parsing the line, thus mutating most of it's fields
 	 * such as commandType (to represent the command type of the parsed line) to
-	 * the destMnemonic (if it had one).
+	 * the dest span (if it had one).
 	 */
 	public void advance()
 	{
 		lineNumber++;
-		rawLine = inputFile.nextLine();
-		cleanLine();
 
-		clearParsedValues();
-		parse();
+		// find the end of the line, pulling in more input if the line runs
+		// past what is buffered
+		int end = input.position();
+		while (true)
+		{
+			int limit = input.limit();
+			while (end < limit && input.get(end) != '\n')
+			{
+				end++;
+			}
+
+			if (end < limit)
+			{
+				break;
+			}
+
+			// refilling moves the bytes kept even when there is nothing more
+			// to read
+			int scanned = end - input.position();
+			boolean more = refill();
+			end = input.position() + scanned;
+			if (!more)
+			{
+				break;
+			}
+		}
+
+		rawStart = input.position();
+		rawEnd = end;
+		input.position(end < input.limit() ? end + 1 : end);
+
+		lex();
 	}
 
 	/**
-	 * Removes all whitespace and everything past a comment leaving only the
-	 * command to be parsed.
+	 * Makes more input available, keeping the bytes from the position on. For
+	 * a mapped file the next window starts at the position, for a channel the
+	 * buffer is compacted (or grown if full) and filled.
+	 * 
+	 * @return false if there is no more input.
+	 * @throws UncheckedIOException
+	 *             if reading failed.
 	 */
-	private void cleanLine()
+	private boolean refill()
 	{
-		// pardon the small regex :D
-		// I just don't want to spam lots of replaceAll s
-		cleanLine = rawLine.replaceAll("\\s+", "");
+		try
+		{
+			if (file != null)
+			{
+				long start = windowStart + input.position();
+				long size = Math.min(file.size() - start, MAP_WINDOW);
+				if (start + input.remaining() >= file.size())
+				{
+					return false;
+				}
 
-		int commentIndex = rawLine.indexOf("//");
-		if (commentIndex >= 0)
+				windowStart = start;
+				input = file.map(FileChannel.MapMode.READ_ONLY, start, size);
+				return true;
+			}
+			else if (channel != null)
+			{
+				if (input.position() == 0 && input.limit() == input.capacity())
+				{
+					ByteBuffer bigger = ByteBuffer.allocateDirect(input.capacity() << 1);
+					bigger.put(input);
+					input = bigger;
+				}
+				else
+				{
+					input.compact();
+				}
+
+				int read = channel.read(input);
+				input.flip();
+				return read > 0;
+			}
+			else
+			{
+				return false;
+			}
+		}
+		catch (IOException e)
 		{
-			cleanLine = cleanLine.substring(0, commentIndex);
+			throw new UncheckedIOException(e);
 		}
 	}
 
 	/**
-	 * Determine the command type of the line.
+	 * Closes the underlying file or channel.
 	 */
-	private void parseCommandType()
+	public void close()
 	{
-		if (cleanLine == null || cleanLine.isEmpty())
+		try
 		{
-			commandType = CommandType.NONE;
-			return;
+			if (file != null)
+			{
+				file.close();
+			}
+			if (channel != null)
+			{
+				channel.close();
+			}
 		}
-
-		switch (cleanLine.charAt(0))
+		catch (IOException e)
 		{
-			case '@':
-				commandType = CommandType.A;
-				return;
-			case '(':
-				commandType = CommandType.LABEL;
-				return;
-			default:
-				commandType = CommandType.C;
-				return;
+			// nothing left to read from it anyway
 		}
 	}
 
 	/**
-	 * Clears the parsed values for the next run of parsing.
+	 * Single scan over the raw line that drops whitespace and comments into
+	 * {@link #line} while remembering where the first '=', ';' and ')' landed,
+	 * then classifies the line and sets the field spans from those positions.
+	 * Nothing is allocated unless the line is bigger than any line before it
+	 * or is malformed.
 	 */
-	private void clearParsedValues()
+	private void lex()
 	{
-		// command type is always set so no need to clear it
-		symbol = null;
-		destMnemonic = null;
-		compMnemonic = null;
-		jumpMnemonic = null;
-	}
+		int rawLength = rawEnd - rawStart;
+		if (line.length < rawLength)
+		{
+			line = new byte[Math.max(rawLength, line.length << 1)];
+		}
 
-	/**
-	 * Parses the line based on the command type.
-	 */
-	private void parse()
-	{
-		parseCommandType();
-		switch (commandType)
+		int length = 0;
+		int equalsIndex = -1;
+		int semicolonIndex = -1;
+		int closeIndex = -1;
+
+		scan: for (int i = rawStart; i < rawEnd; i++)
 		{
-			case A:
-			case LABEL:
-				parseSymbol();
-				break;
-			case C:
-				parseDest();
-				parseComp();
-				parseJump();
-				break;
-			default:
-				break;
+			byte c = input.get(i);
+			switch (c)
+			{
+				// same set as the regex \s
+				case ' ':
+				case '\t':
+				case '\n':
+				case '\u000B':
+				case '\f':
+				case '\r':
+					continue scan;
+				case '/':
+					if (i + 1 < rawEnd && input.get(i + 1) == '/')
+					{
+						break scan;
+					}
+					break;
+				case '=':
+					if (equalsIndex < 0)
+					{
+						equalsIndex = length;
+					}
+					break;
+				case ';':
+					if (semicolonIndex < 0)
+					{
+						semicolonIndex = length;
+					}
+					break;
+				case ')':
+					if (closeIndex < 0)
+					{
+						closeIndex = length;
+					}
+					break;
+				default:
+					break;
+			}
+
+			// hack asm is ascii, anything else can only be an illegal char
+			line[length++] = c >= 0 ? c : 0x7F;
 		}
-	}
 
-	/**
-	 * Parses the line as an A or LABEL instruction. Mutates the
-	 * {@link#symbol} to become the current instruction symbol.
-	 */
-	private void parseSymbol()
-	{
-		switch (commandType)
+		lineLength = length;
+		symbolStart = symbolEnd = 0;
+		destStart = destEnd = 0;
+		compStart = compEnd = 0;
+		jumpStart = jumpEnd = 0;
+
+		if (length == 0)
 		{
-			case A: // clean line must have at least length 1 (the '@')
-				symbol = cleanLine.substring(1, cleanLine.length());
-				if (symbol.isEmpty())
+			commandType = CommandType.NONE;
+			return;
+		}
+
+		switch (line[0])
+		{
+			case '@': // line has at least length 1 (the '@')
+				commandType = CommandType.A;
+				symbolStart = 1;
+				symbolEnd = length;
+				if (symbolStart == symbolEnd)
 				{
-					throw AssemblerExceptionBuilder.start()
-							.at(lineNumber)
-							.in(rawLine.trim())
-							.as("A instruciton needs a symbol or a number")
+					throw problem(0, 1)
+							.as(ErrorCode.MISSING_SYMBOL)
 							.build();
 				}
 				break;
-			case LABEL:
-				if (cleanLine.indexOf(')') == (cleanLine.length() - 1))
+			case '(':
+				commandType = CommandType.LABEL;
+				if (closeIndex == length - 1)
 				{
-					symbol = cleanLine.substring(1, cleanLine.length() - 1);
+					symbolStart = 1;
+					symbolEnd = length - 1;
 				}
 				else
 				{
-					throw AssemblerExceptionBuilder.start()
-							.at(lineNumber)
-							.in(rawLine.trim())
+					throw problem(0, length)
 							.expected(")")
 							.build();
 				}
 				break;
 			default:
+				commandType = CommandType.C;
+				lexC(equalsIndex, semicolonIndex);
 				break;
 		}
 	}
 
 	/**
-	 * Parses the line as an C instruction. Mutates the {@link#destMnemonic} to
-	 * become the current instruction's mnemonic for the field which may or may
-	 * no be there.
+	 * Sets the dest, comp and jump spans of a C instruction from the positions
+	 * of its first '=' and ';'. The comp field is required while dest and jump
+	 * may be absent (an empty span).
 	 */
-	private void parseDest()
+	private void lexC(int equalsIndex, int semicolonIndex)
 	{
-		int destEndIndex = cleanLine.indexOf('=');
-		if (destEndIndex >= 0)
+		if (equalsIndex >= 0)
 		{
-			destMnemonic = cleanLine.substring(0, destEndIndex);
+			destStart = 0;
+			destEnd = equalsIndex;
 
-			if (destMnemonic.length() < 1 || destMnemonic.length() > 3)
+			if (destEnd < 1 || destEnd > 3)
 			{
-				throw AssemblerExceptionBuilder.start()
-						.at(lineNumber)
-						.in(rawLine.trim())
-						.as("Expected 1 to 3 letter destination mnemonic")
+				throw problem(destStart, destEnd)
+						.as(ErrorCode.DEST_LENGTH)
 						.build();
 			}
 		}
-		else
+
+		compStart = equalsIndex >= 0
+				? equalsIndex + 1 : 0;
+		compEnd = semicolonIndex >= 0
+				? semicolonIndex : lineLength;
+
+		if (compEnd < compStart)
 		{
-			destMnemonic = "null";
+			// a ';' before the '=', leave comp empty for the Code lookup to
+			// reject
+			compEnd = compStart;
+		}
+
+		if (semicolonIndex >= 0)
+		{
+			jumpStart = semicolonIndex + 1;
+			jumpEnd = lineLength;
+
+			if (jumpEnd - jumpStart != 3)
+			{
+				throw problem(jumpStart, jumpEnd)
+						.as(ErrorCode.JUMP_LENGTH)
+						.build();
+			}
 		}
 	}
 
 	/**
-	 * Parses the line as an C instruction. Mutates the {@link#compMnemonic} to
-	 * become the current instruction's mnemonic for the field. This field is
-	 * required.
+	 * Starts an error about the span {@code [start, end)} of the clean line,
+	 * with the line number, the trimmed raw line and the columns of the span
+	 * in the raw line already filled in.
+	 * 
+	 * @param start
+	 *            - start of the span in the clean line
+	 * @param end
+	 *            - end (exclusive) of the span in the clean line
+	 * @return the started {@link AssemblerExceptionBuilder}
 	 */
-	private void parseComp()
+	AssemblerExceptionBuilder problem(int start, int end)
 	{
-		int compStartIndex = cleanLine.indexOf('=');
-		compStartIndex = compStartIndex >= 0
-				? compStartIndex + 1 : 0;
-
-		int compEndIndex = cleanLine.indexOf(';');
-		compEndIndex = compEndIndex >= 0
-				? compEndIndex : cleanLine.length();
+		int column = getRawColumn(start);
+		int endColumn = end > start ? getRawColumn(end - 1) + 1 : column;
 
-		compMnemonic = cleanLine.substring(compStartIndex, compEndIndex);
-		
-		//TODO maybe some error checking here
+		return AssemblerExceptionBuilder.start()
+				.at(lineNumber)
+				.in(getRawLine().trim())
+				.columns(column, endColumn);
 	}
 
 	/**
-	 * Parses the line as an C instruction. Mutates the {@link#destMnemonic} to
-	 * become the current instruction's mnemonic for the field which may or may
-	 * no be there.
+	 * Maps an index of the clean line back to a column (starting at 1) of the
+	 * raw line by skipping whitespace the same way {@link #lex()} does. Only
+	 * meant for errors.
 	 */
-	private void parseJump()
+	private int getRawColumn(int cleanIndex)
 	{
-		int jumpStartIndex = cleanLine.indexOf(';');
-		jumpStartIndex += 1;
-
-		if (jumpStartIndex > 0)
+		int length = 0;
+		for (int i = rawStart; i < rawEnd; i++)
 		{
-			jumpMnemonic = cleanLine.substring(jumpStartIndex, cleanLine.length());
-
-			if (jumpMnemonic.length() != 3)
+			switch (input.get(i))
 			{
-				throw AssemblerExceptionBuilder.start()
-						.at(lineNumber)
-						.in(rawLine.trim())
-						.as("Expected 3 letter jump mnemonic")
-						.build();
+				case ' ':
+				case '\t':
+				case '\n':
+				case '\u000B':
+				case '\f':
+				case '\r':
+					break;
+				default:
+					if (length == cleanIndex)
+					{
+						return i - rawStart + 1;
+					}
+					length++;
+					break;
 			}
 		}
-		else
-		{
-			jumpMnemonic = "null";
-		}
+
+		return rawEnd - rawStart + 1;
+	}
+
+	/**
+	 * Creates a string from a span of the clean line. Only meant for the cold
+	 * paths (error messages, debugging), the hot path should use the spans.
+	 */
+	private String spanToString(int start, int end)
+	{
+		return new String(line, start, end - start, StandardCharsets.US_ASCII);
 	}
 
 	/**
@@ -282,19 +477,30 @@ public class Parser
 	}
 
 	/**
-	 * @return the rawLine
+	 * @return the rawLine as a new string
 	 */
 	public String getRawLine()
 	{
-		return rawLine;
+		byte[] raw = new byte[rawEnd - rawStart];
+		input.get(rawStart, raw);
+		return new String(raw, StandardCharsets.US_ASCII);
 	}
 
 	/**
-	 * @return the cleanLine
+	 * @return the cleanLine as a new string
 	 */
 	public String getCleanLine()
 	{
-		return cleanLine;
+		return spanToString(0, lineLength);
+	}
+
+	/**
+	 * @return the buffer the clean line and all spans refer to. Only valid
+	 *         until the next {@link #advance()}.
+	 */
+	public byte[] getLine()
+	{
+		return line;
 	}
 
 	/**
@@ -306,34 +512,100 @@ public class Parser
 	}
 
 	/**
-	 * @return the symbol
+	 * @return the symbol as a new string
 	 */
 	public String getSymbol()
 	{
-		return symbol;
+		return spanToString(symbolStart, symbolEnd);
+	}
+
+	/**
+	 * @return the start of the symbol span
+	 */
+	public int getSymbolStart()
+	{
+		return symbolStart;
+	}
+
+	/**
+	 * @return the end (exclusive) of the symbol span
+	 */
+	public int getSymbolEnd()
+	{
+		return symbolEnd;
 	}
 
 	/**
-	 * @return the destMnemonic
+	 * @return the destMnemonic as a new string, "null" if absent
 	 */
 	public String getDestMnemonic()
 	{
-		return destMnemonic;
+		return destStart == destEnd ? "null" : spanToString(destStart, destEnd);
+	}
+
+	/**
+	 * @return the start of the dest span
+	 */
+	public int getDestStart()
+	{
+		return destStart;
+	}
+
+	/**
+	 * @return the end (exclusive) of the dest span, equal to the start if
+	 *         absent
+	 */
+	public int getDestEnd()
+	{
+		return destEnd;
 	}
 
 	/**
-	 * @return the compMnemonic
+	 * @return the compMnemonic as a new string
 	 */
 	public String getCompMnemonic()
 	{
-		return compMnemonic;
+		return spanToString(compStart, compEnd);
 	}
 
 	/**
-	 * @return the jumpMnemonic
+	 * @return the start of the comp span
+	 */
+	public int getCompStart()
+	{
+		return compStart;
+	}
+
+	/**
+	 * @return the end (exclusive) of the comp span
+	 */
+	public int getCompEnd()
+	{
+		return compEnd;
+	}
+
+	/**
+	 * @return the jumpMnemonic as a new string, "null" if absent
 	 */
 	public String getJumpMnemonic()
 	{
-		return jumpMnemonic;
+		return jumpStart == jumpEnd ? "null" : spanToString(jumpStart, jumpEnd);
+	}
+
+	/**
+	 * @return the start of the jump span
+	 */
+	public int getJumpStart()
+	{
+		return jumpStart;
+	}
+
+	/**
+	 * @return the end (exclusive) of the jump span, equal to the start if
+	 *         absent
+	 */
+	public int getJumpEnd()
+	{
+		return jumpEnd;
 	}
 }
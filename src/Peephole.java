@@ -0,0 +1,549 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Optional optimizer run between the two passes, when the instructions are
+ * encoded but the symbols are not resolved yet. Every {@link PeepholeRule}
+ * is tried at every live instruction until a pass changes nothing (at most
+ * {@link #MAX_PASSES}), then the removed instructions are dropped and every
+ * label is moved to the first instruction left at or after it.
+ * <p>
+ * Only labels are known to be jump targets. A program that jumps to a
+ * numeric ROM address, or computes one, may break, which is why optimizing
+ * is opt in.
+ *
+ * @author Boris
+ *
+ */
+public class Peephole
+{
+	public static final int			MAX_PASSES	= 8;
+
+	// fields of an encoded C instruction
+	public static final int			DEST_A		= 0b100 << 3;
+	public static final int			DEST_M		= 0b001 << 3;
+	public static final int			DEST_MASK	= 0b111 << 3;
+	public static final int			JUMP_MASK	= 0b111;
+	public static final int			JMP			= 0b111;
+
+	// A=M
+	private static final short		LOAD_A		= (short) 0xFC20;
+
+	// how far back a rule looks for the last A instruction
+	private static final int		MAX_SCAN	= 16;
+
+	private static final PeepholeRule[]	RULES	= { new Unreachable(), new JumpToNext(), new RedundantLoad(),
+			new KnownAddress() };
+
+	private final List<PeepholeRule>	rules;
+	private final boolean				outline;
+
+	/**
+	 * Creates an optimizer with the rules, tried in the order given.
+	 *
+	 * @param rules
+	 *            - the rules to try.
+	 */
+	public Peephole(List<PeepholeRule> rules)
+	{
+		this(rules, false);
+	}
+
+	private Peephole(List<PeepholeRule> rules, boolean outline)
+	{
+		this.rules = new ArrayList<>(rules);
+		this.outline = outline;
+	}
+
+	/**
+	 * @return an optimizer with the same rules that also moves repeated
+	 *         sequences into shared routines with the {@link Outliner} once
+	 *         the rules are done
+	 */
+	public Peephole withOutlining()
+	{
+		return new Peephole(rules, true);
+	}
+
+	/**
+	 * @return an optimizer with all built in rules
+	 */
+	public static Peephole standard()
+	{
+		return new Peephole(Arrays.asList(RULES));
+	}
+
+	/**
+	 * Creates an optimizer with built in rules picked by name.
+	 *
+	 * @param names
+	 *            - comma separated rule names.
+	 * @return the optimizer
+	 * @throws IllegalArgumentException
+	 *             if a name is not a built in rule.
+	 */
+	public static Peephole parse(String names)
+	{
+		List<PeepholeRule> rules = new ArrayList<>();
+		for (String name : names.split(","))
+		{
+			PeepholeRule found = null;
+			for (PeepholeRule rule : RULES)
+			{
+				if (rule.getName().equals(name))
+				{
+					found = rule;
+				}
+			}
+			if (found == null)
+			{
+				throw new IllegalArgumentException("Unknown peephole rule \"" + name + "\"");
+			}
+			rules.add(found);
+		}
+
+		return new Peephole(rules);
+	}
+
+	/**
+	 * Optimizes a program the first pass has built and moves the labels.
+	 *
+	 * @param program
+	 *            - the program of the first pass, changed in place.
+	 * @param symbolTable
+	 *            - the labels of the first pass, changed in place.
+	 * @return what optimizing saved
+	 */
+	public Savings optimize(Program program, SymbolTable symbolTable)
+	{
+		Savings savings = rules.isEmpty() ? new Savings(0, 0) : applyRules(program, symbolTable);
+		if (outline)
+		{
+			savings = savings.plus(Outliner.outline(program, symbolTable));
+		}
+
+		return savings;
+	}
+
+	private Savings applyRules(Program program, SymbolTable symbolTable)
+	{
+		Window window = new Window(program, symbolTable);
+
+		for (int pass = 0; pass < MAX_PASSES; pass++)
+		{
+			boolean changed = false;
+			for (int i = window.next(-1); i < window.size(); i = window.next(i))
+			{
+				for (PeepholeRule rule : rules)
+				{
+					if (window.isRemoved(i))
+					{
+						break;
+					}
+					changed |= rule.apply(window, i);
+				}
+			}
+			if (!changed)
+			{
+				break;
+			}
+		}
+
+		// the number of live instructions before every address is where the
+		// labels of that address go
+		int[] addresses = new int[program.size() + 1];
+		for (int i = 0; i < program.size(); i++)
+		{
+			addresses[i + 1] = addresses[i] + (window.removed[i] ? 0 : 1);
+		}
+		symbolTable.relocate(addresses);
+		program.removeAll(window.removed);
+
+		return new Savings(window.words, window.cycles);
+	}
+
+	/**
+	 * @return the names of the rules and "outline" if outlining, comma
+	 *         separated
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder names = new StringBuilder();
+		for (PeepholeRule rule : rules)
+		{
+			names.append(names.length() == 0 ? "" : ",").append(rule.getName());
+		}
+		if (outline)
+		{
+			names.append(names.length() == 0 ? "" : ",").append("outline");
+		}
+
+		return names.toString();
+	}
+
+	/**
+	 * The instructions of a program while it is being optimized. Removed
+	 * instructions stay in place until the end, indexes don't change.
+	 */
+	public static class Window
+	{
+		private final Program	program;
+		private final boolean[]	removed;
+		// a label points at the instruction
+		private final boolean[]	labelled;
+		// symbol id -> the address of the label or -1 if it is not a label
+		private final int[]		labels;
+		private int				words;
+		private long			cycles;
+
+		private Window(Program program, SymbolTable symbolTable)
+		{
+			this.program = program;
+			removed = new boolean[program.size()];
+			labelled = new boolean[program.size() + 1];
+			for (int address : symbolTable.getAddresses())
+			{
+				labelled[address] = true;
+			}
+
+			// a label can't have the name of a predefined symbol
+			SymbolTable predefined = new SymbolTable();
+			labels = new int[program.getSymbolCount()];
+			for (int symbol = 0; symbol < labels.length; symbol++)
+			{
+				byte[] name = program.getSymbolKey(symbol);
+				labels[symbol] = predefined.getAddress(name, 0, name.length) >= 0 ? -1
+						: symbolTable.getAddress(name, 0, name.length);
+			}
+		}
+
+		/**
+		 * @return the number of instructions, removed ones included
+		 */
+		public int size()
+		{
+			return removed.length;
+		}
+
+		/**
+		 * @return true if the instruction was removed
+		 */
+		public boolean isRemoved(int index)
+		{
+			return removed[index];
+		}
+
+		/**
+		 * @return the first live instruction after the index or
+		 *         {@link #size()}
+		 */
+		public int next(int index)
+		{
+			int next = index + 1;
+			while (next < removed.length && removed[next])
+			{
+				next++;
+			}
+
+			return next;
+		}
+
+		/**
+		 * @return the last live instruction before the index or -1
+		 */
+		public int previous(int index)
+		{
+			int previous = index - 1;
+			while (previous >= 0 && removed[previous])
+			{
+				previous--;
+			}
+
+			return previous;
+		}
+
+		/**
+		 * @return true if the instruction is an A instruction
+		 */
+		public boolean isA(int index)
+		{
+			return (program.getWord(index) & 0x8000) == 0;
+		}
+
+		/**
+		 * @return the encoded instruction, 0 for an A instruction referring to
+		 *         a symbol
+		 */
+		public short getWord(int index)
+		{
+			return program.getWord(index);
+		}
+
+		/**
+		 * @return true if both are A instructions loading the same constant or
+		 *         symbol
+		 */
+		public boolean isSameA(int index, int other)
+		{
+			return isA(index) && program.getWord(index) == program.getWord(other)
+					&& program.getSymbol(index) == program.getSymbol(other);
+		}
+
+		/**
+		 * @return true if a label points at the live instruction, also once
+		 *         the removed instructions before it are gone
+		 */
+		public boolean isEntry(int index)
+		{
+			for (int i = index;; i--)
+			{
+				if (labelled[i])
+				{
+					return true;
+				}
+				if (i == 0 || !removed[i - 1])
+				{
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * @return the first live instruction at or after the label an A
+		 *         instruction loads, {@link #size()} past the end, or -1 if it
+		 *         doesn't load a label
+		 */
+		public int getTarget(int index)
+		{
+			int symbol = program.getSymbol(index);
+			if (symbol == Program.NO_SYMBOL || labels[symbol] < 0)
+			{
+				return -1;
+			}
+
+			int address = labels[symbol];
+			return address < removed.length && removed[address] ? next(address) : address;
+		}
+
+		/**
+		 * Removes a live instruction.
+		 *
+		 * @param index
+		 *            - the instruction.
+		 * @param cycles
+		 *            - the cycles saved on a run through it, 0 if it was
+		 *            unreachable.
+		 */
+		public void remove(int index, int cycles)
+		{
+			removed[index] = true;
+			words++;
+			this.cycles += cycles;
+		}
+	}
+
+	/**
+	 * What optimizing a program saved. The cycles count every removed
+	 * instruction that could be reached once, the real number depends on how
+	 * often it would have run. Outlining costs cycles, so they can be
+	 * negative.
+	 */
+	public static class Savings
+	{
+		private final int	words;
+		private final long	cycles;
+
+		Savings(int words, long cycles)
+		{
+			this.words = words;
+			this.cycles = cycles;
+		}
+
+		/**
+		 * @return the savings of this and another optimization together
+		 */
+		Savings plus(Savings other)
+		{
+			return new Savings(words + other.words, cycles + other.cycles);
+		}
+
+		/**
+		 * @return the number of words removed
+		 */
+		public int getWords()
+		{
+			return words;
+		}
+
+		/**
+		 * @return the estimated number of cycles saved
+		 */
+		public long getCycles()
+		{
+			return cycles;
+		}
+	}
+
+	/**
+	 * Removes the instructions after an unconditional jump up to the next
+	 * label, nothing can reach them.
+	 */
+	private static class Unreachable implements PeepholeRule
+	{
+		@Override
+		public String getName()
+		{
+			return "unreachable";
+		}
+
+		@Override
+		public boolean apply(Window window, int index)
+		{
+			if (window.isA(index) || (window.getWord(index) & JUMP_MASK) != JMP)
+			{
+				return false;
+			}
+
+			boolean changed = false;
+			for (int i = window.next(index); i < window.size() && !window.isEntry(i); i = window.next(i))
+			{
+				window.remove(i, 0);
+				changed = true;
+			}
+
+			return changed;
+		}
+	}
+
+	/**
+	 * Removes {@code @LABEL} followed by a jump that only jumps, when the
+	 * label is right after the jump. The {@code @LABEL} stays if the
+	 * instruction after the jump is a C instruction, which might use A.
+	 */
+	private static class JumpToNext implements PeepholeRule
+	{
+		@Override
+		public String getName()
+		{
+			return "jump-to-next";
+		}
+
+		@Override
+		public boolean apply(Window window, int index)
+		{
+			int jump = window.next(index);
+			if (!window.isA(index) || jump >= window.size() || window.isA(jump) || window.isEntry(jump))
+			{
+				return false;
+			}
+
+			int word = window.getWord(jump);
+			int next = window.next(jump);
+			if ((word & DEST_MASK) != 0 || (word & JUMP_MASK) == 0 || window.getTarget(index) != next)
+			{
+				return false;
+			}
+
+			window.remove(jump, 1);
+			if (next == window.size() || window.isA(next))
+			{
+				window.remove(index, 1);
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Removes an A instruction followed by another one, A is overwritten
+	 * before anything uses it.
+	 */
+	private static class RedundantLoad implements PeepholeRule
+	{
+		@Override
+		public String getName()
+		{
+			return "redundant-load";
+		}
+
+		@Override
+		public boolean apply(Window window, int index)
+		{
+			int next = window.next(index);
+			if (!window.isA(index) || next >= window.size() || !window.isA(next))
+			{
+				return false;
+			}
+
+			window.remove(index, 1);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes {@code @X} when A already holds X on the only way in, and
+	 * {@code @X A=M} when A already holds the pointer in X, as in the
+	 * {@code @SP A=M} reloads, with no write to memory since.
+	 */
+	private static class KnownAddress implements PeepholeRule
+	{
+		@Override
+		public String getName()
+		{
+			return "known-address";
+		}
+
+		@Override
+		public boolean apply(Window window, int index)
+		{
+			if (!window.isA(index) || window.isEntry(index))
+			{
+				return false;
+			}
+
+			int load = window.next(index);
+			boolean reload = load < window.size() && window.getWord(load) == LOAD_A && !window.isEntry(load);
+
+			boolean memoryWritten = false;
+			int i = window.previous(index);
+			for (int scanned = 0; i >= 0 && scanned < MAX_SCAN; scanned++)
+			{
+				if (window.isA(i))
+				{
+					if (window.isSameA(i, index))
+					{
+						window.remove(index, 1);
+						return true;
+					}
+					return false;
+				}
+
+				int word = window.getWord(i);
+				if ((word & DEST_A) != 0)
+				{
+					break;
+				}
+				memoryWritten |= (word & DEST_M) != 0;
+				if (window.isEntry(i))
+				{
+					return false;
+				}
+				i = window.previous(i);
+			}
+
+			// A was last written by A=M right after @X
+			int pointer = i < 0 ? -1 : window.previous(i);
+			if (!reload || memoryWritten || i < 0 || window.getWord(i) != LOAD_A || window.isEntry(i)
+					|| pointer < 0 || !window.isSameA(pointer, index))
+			{
+				return false;
+			}
+
+			window.remove(index, 1);
+			window.remove(load, 1);
+			return true;
+		}
+	}
+}
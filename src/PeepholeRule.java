@@ -0,0 +1,29 @@
+/**
+ * A rewrite the {@link Peephole} optimizer tries at every live instruction.
+ * Rules only ever remove instructions, through the window, so the optimizer
+ * can move the labels afterwards. A rule has to keep the program doing the
+ * same thing on every path into the instructions it looks at, which means
+ * not looking past an instruction a label points at
+ * ({@link Peephole.Window#isEntry(int)}) unless that is safe.
+ *
+ * @author Boris
+ *
+ */
+public interface PeepholeRule
+{
+	/**
+	 * @return the name to select the rule by on the command line
+	 */
+	String getName();
+
+	/**
+	 * Tries the rule at a live instruction.
+	 *
+	 * @param window
+	 *            - the instructions being optimized.
+	 * @param index
+	 *            - the index of the instruction.
+	 * @return true if the rule removed anything
+	 */
+	boolean apply(Peephole.Window window, int index);
+}
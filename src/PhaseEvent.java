@@ -0,0 +1,29 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event spanning one phase of an assembly. It is only
+ * recorded when a recording with the event enabled is running (for instance
+ * {@code java -XX:StartFlightRecording Assembler file.asm}), otherwise
+ * beginning and committing it does nothing.
+ * 
+ * @author Boris
+ *
+ */
+@Name("jash.Phase")
+@Label("Assembler Phase")
+@Category("Assembler")
+@Description("One phase of assembling a file")
+public class PhaseEvent extends jdk.jfr.Event
+{
+	@Label("Phase")
+	String	phase;
+
+	@Label("Lines")
+	long	lines;
+
+	@Label("Instructions")
+	long	instructions;
+}
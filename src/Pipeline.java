@@ -0,0 +1,422 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Assembles with reading and writing on threads of their own so I/O overlaps
+ * with the passes. A reader thread fills byte blocks that the first pass
+ * (lexing and encoding) consumes, and once it is done the second pass hands
+ * blocks of resolved words to a writer thread. The stages pass preallocated
+ * blocks through {@link RingBuffer}s, full ones downstream and empty ones
+ * back upstream, so a slow stage holds back the stage feeding it. The words
+ * are written in the same order as {@link Assembler#secondPass(Program,
+ * SymbolTable)} resolves them.
+ * 
+ * @author Boris
+ *
+ */
+public class Pipeline
+{
+	private static final int	BLOCKS		= 8;
+	private static final int	BYTE_BLOCK	= 1 << 16;
+	private static final int	WORD_BLOCK	= 1 << 13;
+
+	/**
+	 * The first pass's view of the blocks filled by the reader thread.
+	 */
+	private static class BlockChannel implements ReadableByteChannel
+	{
+		private final RingBuffer<ByteBuffer>	filled;
+		private final RingBuffer<ByteBuffer>	empty;
+		private final Stage						reader;
+		private ByteBuffer						current;
+		private boolean							open;
+
+		BlockChannel(RingBuffer<ByteBuffer> filled, RingBuffer<ByteBuffer> empty, Stage reader)
+		{
+			this.filled = filled;
+			this.empty = empty;
+			this.reader = reader;
+			this.open = true;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException
+		{
+			while (current == null || !current.hasRemaining())
+			{
+				if (current != null)
+				{
+					empty.put(current);
+				}
+
+				current = filled.take();
+				if (current == null)
+				{
+					reader.rethrow();
+					return -1;
+				}
+			}
+
+			int count = Math.min(dst.remaining(), current.remaining());
+			ByteBuffer part = current.duplicate();
+			part.limit(part.position() + count);
+			dst.put(part);
+			current.position(current.position() + count);
+
+			return count;
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return open;
+		}
+
+		/**
+		 * Lets the reader thread stop waiting for empty blocks.
+		 */
+		@Override
+		public void close()
+		{
+			open = false;
+			empty.close();
+		}
+	}
+
+	/**
+	 * A thread running one stage that remembers whatever ended it. A failure
+	 * fails the buffers the stage works on, so the threads on their other
+	 * sides stop waiting for it.
+	 */
+	private static abstract class Stage extends Thread
+	{
+		private final RingBuffer<?>[]	buffers;
+		private volatile Throwable		failure;
+
+		Stage(String name, RingBuffer<?>... buffers)
+		{
+			super(name);
+			setDaemon(true);
+			this.buffers = buffers;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				work();
+			}
+			catch (Throwable e)
+			{
+				failure = e;
+				for (RingBuffer<?> buffer : buffers)
+				{
+					buffer.fail(e);
+				}
+			}
+			finally
+			{
+				done();
+			}
+		}
+
+		abstract void work() throws IOException;
+
+		/**
+		 * Runs once the stage has ended, after a failure is recorded.
+		 */
+		void done()
+		{
+		}
+
+		void rethrow() throws IOException
+		{
+			if (failure instanceof IOException)
+			{
+				throw (IOException) failure;
+			}
+			else if (failure instanceof RuntimeException)
+			{
+				throw (RuntimeException) failure;
+			}
+			else if (failure instanceof Error)
+			{
+				throw (Error) failure;
+			}
+		}
+	}
+
+	/**
+	 * Assembles everything read from the input and writes the words to the
+	 * output, which is left open. Nothing is written if there are errors.
+	 * 
+	 * @param input
+	 *            - the hack asm source, closed once read.
+	 * @param output
+	 *            - where the words go.
+	 * @return the assembled program
+	 * @throws IOException
+	 *             if writing failed.
+	 * @throws UncheckedIOException
+	 *             if reading failed.
+	 */
+	public static Assembly assemble(ReadableByteChannel input, WordWriter output) throws IOException
+	{
+		return assemble(input, output, Diagnostics.UNLIMITED);
+	}
+
+	/**
+	 * Assembles like {@link #assemble(ReadableByteChannel, WordWriter)}
+	 * stopping once the given number of errors is found.
+	 * 
+	 * @param input
+	 *            - the hack asm source, closed once read.
+	 * @param output
+	 *            - where the words go.
+	 * @param maxErrors
+	 *            - the most errors to report, at least 1.
+	 * @return the assembled program
+	 * @throws IOException
+	 *             if writing failed.
+	 * @throws UncheckedIOException
+	 *             if reading failed.
+	 */
+	public static Assembly assemble(ReadableByteChannel input, WordWriter output, int maxErrors)
+			throws IOException
+	{
+		return assemble(input, output, maxErrors, Stats.disabled());
+	}
+
+	/**
+	 * Assembles like {@link #assemble(ReadableByteChannel, WordWriter, int)}
+	 * timing and counting both passes together in the stats. The allocations
+	 * are those of the passes, the reader and writer threads allocate no more
+	 * than their blocks.
+	 * 
+	 * @param input
+	 *            - the hack asm source, closed once read.
+	 * @param output
+	 *            - where the words go.
+	 * @param maxErrors
+	 *            - the most errors to report, at least 1.
+	 * @param stats
+	 *            - where the assembly is recorded.
+	 * @return the assembled program
+	 * @throws IOException
+	 *             if writing failed.
+	 * @throws UncheckedIOException
+	 *             if reading failed.
+	 */
+	public static Assembly assemble(ReadableByteChannel input, WordWriter output, int maxErrors, Stats stats)
+			throws IOException
+	{
+		Code.getInstance();
+
+		stats.begin(Stats.Phase.ASSEMBLE);
+
+		RingBuffer<ByteBuffer> filledBytes = new RingBuffer<>(BLOCKS);
+		RingBuffer<ByteBuffer> emptyBytes = new RingBuffer<>(BLOCKS);
+		for (int i = 0; i < BLOCKS; i++)
+		{
+			emptyBytes.put(ByteBuffer.allocateDirect(BYTE_BLOCK));
+		}
+
+		Stage reader = new Stage("jash-reader", filledBytes, emptyBytes)
+		{
+			@Override
+			void work() throws IOException
+			{
+				try
+				{
+					ByteBuffer block;
+					while ((block = emptyBytes.take()) != null)
+					{
+						block.clear();
+						if (input.read(block) < 0)
+						{
+							break;
+						}
+						block.flip();
+						filledBytes.put(block);
+					}
+				}
+				finally
+				{
+					input.close();
+				}
+			}
+
+			// closed only now so the first pass sees the failure once it
+			// runs out of blocks
+			@Override
+			void done()
+			{
+				filledBytes.close();
+			}
+		};
+
+		RingBuffer<ShortBuffer> filledWords = new RingBuffer<>(BLOCKS);
+		RingBuffer<ShortBuffer> emptyWords = new RingBuffer<>(BLOCKS);
+		for (int i = 0; i < BLOCKS; i++)
+		{
+			emptyWords.put(ShortBuffer.allocate(WORD_BLOCK));
+		}
+
+		Stage writer = new Stage("jash-writer", filledWords, emptyWords)
+		{
+			@Override
+			void work() throws IOException
+			{
+				IOException failure = null;
+
+				ShortBuffer block;
+				while ((block = filledWords.take()) != null)
+				{
+					// keep taking blocks after a failure so the second pass
+					// never waits on a full buffer
+					if (failure == null)
+					{
+						try
+						{
+							output.write(block);
+						}
+						catch (IOException e)
+						{
+							failure = e;
+						}
+					}
+					block.clear();
+					emptyWords.put(block);
+				}
+
+				if (failure != null)
+				{
+					throw failure;
+				}
+			}
+		};
+
+		reader.start();
+		writer.start();
+
+		Program program = new Program();
+		SymbolTable symbolTable = new SymbolTable();
+		Diagnostics diagnostics = new Diagnostics(maxErrors);
+		Parser parser = new Parser(new BlockChannel(filledBytes, emptyBytes, reader));
+		int labels = -1;
+		int variables = -1;
+
+		try
+		{
+			boolean parsed = Assembler.firstPass(parser, symbolTable, program, diagnostics);
+			labels = symbolTable.size();
+			if (parsed)
+			{
+				int[] addresses = new int[program.getSymbolCount()];
+				Arrays.fill(addresses, -1);
+				int nextRAM = 16;
+
+				ShortBuffer words = program.getWordBuffer();
+				for (int from = 0; from < program.size(); from += WORD_BLOCK)
+				{
+					int to = Math.min(program.size(), from + WORD_BLOCK);
+					nextRAM = Assembler.secondPass(program, symbolTable, addresses, nextRAM, from, to);
+
+					ShortBuffer block = emptyWords.take();
+					words.limit(to).position(from);
+					block.put(words);
+					block.flip();
+					filledWords.put(block);
+				}
+				variables = nextRAM - 16;
+			}
+		}
+		catch (RingBuffer.FailedException e)
+		{
+			// a stage died, throw what ended it
+			rethrowRead(reader);
+			writer.rethrow();
+			throw e;
+		}
+		finally
+		{
+			// if the first pass stopped early the reader may be waiting on a
+			// full buffer, let it run out
+			emptyBytes.close();
+			drain(filledBytes);
+
+			filledWords.close();
+			join(writer);
+			join(reader);
+		}
+
+		rethrowRead(reader);
+		writer.rethrow();
+
+		stats.end(parser.getLineNumber(), program.size());
+		stats.count(parser.getLineNumber(), program.size(), labels, variables);
+
+		return new Assembly(program, symbolTable, diagnostics);
+	}
+
+	/**
+	 * Takes the blocks left in the buffer until it is closed or its producer
+	 * has failed, which ends the producer either way.
+	 */
+	private static void drain(RingBuffer<?> buffer)
+	{
+		try
+		{
+			while (buffer.take() != null)
+			{
+			}
+		}
+		catch (RingBuffer.FailedException e)
+		{
+			// thrown again once the stage is joined
+		}
+	}
+
+	/**
+	 * Throws what ended the reader, a failed read as an
+	 * {@link UncheckedIOException} like the {@link Parser} does so it can be
+	 * told from a failed write.
+	 */
+	private static void rethrowRead(Stage reader)
+	{
+		try
+		{
+			reader.rethrow();
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void join(Thread stage)
+	{
+		boolean interrupted = false;
+		while (stage.isAlive())
+		{
+			try
+			{
+				stage.join();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
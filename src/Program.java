@@ -0,0 +1,407 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact array-backed instruction stream built by the first pass so the
+ * second pass never has to read or parse the source text again. Only A and C
+ * instructions are stored (LABEL and empty lines produce no words). Each
+ * instruction is a machine word, the source line it came from, and a symbol
+ * id. Instructions whose symbol id is {@link #NO_SYMBOL} are fully encoded
+ * already (C instructions and numeric A instructions), the others are A
+ * instructions referring to a symbol that the second pass has to resolve.
+ *
+ * @author Boris
+ *
+ */
+public class Program
+{
+	public static final int				NO_SYMBOL			= -1;
+
+	private static final int			INITIAL_CAPACITY	= 1024;
+
+	/**
+	 * Takes the instructions of a program that is drained instead of growing
+	 * (see {@link ExternalAssembly}).
+	 */
+	interface Drain
+	{
+		/**
+		 * Takes the instructions held by the program, they and their symbols
+		 * are dropped once this returns.
+		 */
+		void drain(Program program) throws IOException;
+	}
+
+	private short[]						words;
+	private int[]						symbols;
+	private int[]						lines;
+	private int							size;
+
+	private SymbolMap					symbolIds;
+
+	// null to grow the arrays instead
+	private Drain						drain;
+
+	/**
+	 * Creates an empty instruction stream.
+	 */
+	public Program()
+	{
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty instruction stream with room for the given number of
+	 * instructions.
+	 *
+	 * @param capacity
+	 *            - the expected number of instructions, at least 1.
+	 */
+	public Program(int capacity)
+	{
+		words = new short[capacity];
+		symbols = new int[capacity];
+		lines = new int[capacity];
+		size = 0;
+
+		symbolIds = new SymbolMap();
+	}
+
+	/**
+	 * Creates an instruction stream that never holds more than the given
+	 * number of instructions, handing them to the drain whenever it is full.
+	 * Only the symbols of the instructions held are kept, so symbol ids start
+	 * over after every drain.
+	 *
+	 * @param capacity
+	 *            - the most instructions held at a time, at least 1.
+	 * @param drain
+	 *            - where the instructions go.
+	 */
+	Program(int capacity, Drain drain)
+	{
+		this(capacity);
+
+		this.drain = drain;
+	}
+
+	/**
+	 * Appends an already encoded instruction.
+	 *
+	 * @param word
+	 *            - the machine word of the instruction.
+	 * @param line
+	 *            - the source line of the instruction.
+	 */
+	public void addWord(short word, int line)
+	{
+		add(word, NO_SYMBOL, line);
+	}
+
+	/**
+	 * Appends already encoded instructions.
+	 *
+	 * @param words
+	 *            - the machine words of the instructions.
+	 * @param line
+	 *            - the source line of all the instructions.
+	 */
+	public void addWords(short[] words, int line)
+	{
+		ensureCapacity(size + words.length);
+		System.arraycopy(words, 0, this.words, size, words.length);
+		Arrays.fill(symbols, size, size + words.length, NO_SYMBOL);
+		Arrays.fill(lines, size, size + words.length, line);
+		size += words.length;
+	}
+
+	/**
+	 * Appends an A instruction referring to a symbol which gets resolved in
+	 * the second pass.
+	 *
+	 * @param symbol
+	 *            - the symbol of the A instruction.
+	 * @param line
+	 *            - the source line of the instruction.
+	 */
+	public void addSymbol(String symbol, int line)
+	{
+		// a drain starts the symbol ids over, so it has to come first
+		makeRoom();
+		add((short) 0, symbolIds.intern(symbol), line);
+	}
+
+	/**
+	 * Appends an A instruction referring to the symbol in
+	 * {@code buffer[start, end)}, which gets resolved in the second pass. Only
+	 * a symbol that was not seen before is copied.
+	 *
+	 * @param line
+	 *            - the source line of the instruction.
+	 */
+	public void addSymbol(byte[] buffer, int start, int end, int line)
+	{
+		makeRoom();
+		add((short) 0, symbolIds.intern(buffer, start, end), line);
+	}
+
+	/**
+	 * Appends all instructions of another program, keeping their words and
+	 * mapping their symbols to the symbol ids of this program.
+	 *
+	 * @param other
+	 *            - the program to append.
+	 * @param lineOffset
+	 *            - added to the source lines of the appended instructions.
+	 */
+	public void append(Program other, int lineOffset)
+	{
+		int[] ids = new int[other.getSymbolCount()];
+		for (int id = 0; id < ids.length; id++)
+		{
+			byte[] symbol = other.getSymbolKey(id);
+			ids[id] = symbolIds.intern(symbol, 0, symbol.length);
+		}
+
+		ensureCapacity(size + other.size);
+		System.arraycopy(other.words, 0, words, size, other.size);
+		for (int i = 0; i < other.size; i++)
+		{
+			int symbol = other.symbols[i];
+			symbols[size + i] = symbol == NO_SYMBOL ? NO_SYMBOL : ids[symbol];
+			lines[size + i] = other.lines[i] + lineOffset;
+		}
+		size += other.size;
+	}
+
+	/**
+	 * Appends the words of another program whose symbols are already resolved,
+	 * without its symbols.
+	 *
+	 * @param other
+	 *            - the program to append.
+	 * @param lineOffset
+	 *            - added to the source lines of the appended instructions.
+	 */
+	public void appendWords(Program other, int lineOffset)
+	{
+		ensureCapacity(size + other.size);
+		System.arraycopy(other.words, 0, words, size, other.size);
+		Arrays.fill(symbols, size, size + other.size, NO_SYMBOL);
+		for (int i = 0; i < other.size; i++)
+		{
+			lines[size + i] = other.lines[i] + lineOffset;
+		}
+		size += other.size;
+	}
+
+	/**
+	 * Drops the removed instructions, keeping the others in order.
+	 *
+	 * @param removed
+	 *            - true for every instruction to drop.
+	 */
+	public void removeAll(boolean[] removed)
+	{
+		int kept = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (!removed[i])
+			{
+				words[kept] = words[i];
+				symbols[kept] = symbols[i];
+				lines[kept] = lines[i];
+				kept++;
+			}
+		}
+		size = kept;
+	}
+
+	/**
+	 * Takes over the instructions and symbols of another program, which must
+	 * not be used afterwards.
+	 *
+	 * @param other
+	 *            - the program to take the place of this one.
+	 */
+	public void replace(Program other)
+	{
+		words = other.words;
+		symbols = other.symbols;
+		lines = other.lines;
+		size = other.size;
+		symbolIds = other.symbolIds;
+	}
+
+	/**
+	 * Appends the instruction growing the backing arrays as needed.
+	 */
+	private void add(short word, int symbol, int line)
+	{
+		makeRoom();
+
+		words[size] = word;
+		symbols[size] = symbol;
+		lines[size] = line;
+		size++;
+	}
+
+	/**
+	 * Makes room for one more instruction, by draining or growing the
+	 * backing arrays if they are full.
+	 */
+	private void makeRoom()
+	{
+		if (size == words.length)
+		{
+			if (drain != null)
+			{
+				drain();
+			}
+			else
+			{
+				ensureCapacity(size + 1);
+			}
+		}
+	}
+
+	/**
+	 * Hands the instructions held to the drain, if the program has one.
+	 *
+	 * @throws UncheckedIOException
+	 *             if the drain failed.
+	 */
+	void drain()
+	{
+		if (drain == null || size == 0)
+		{
+			return;
+		}
+
+		try
+		{
+			drain.drain(this);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		size = 0;
+		symbolIds = new SymbolMap();
+	}
+
+	/**
+	 * Grows the backing arrays to hold at least the given number of
+	 * instructions.
+	 */
+	private void ensureCapacity(int minimum)
+	{
+		if (minimum > words.length)
+		{
+			int capacity = Math.max(minimum, words.length << 1);
+			words = Arrays.copyOf(words, capacity);
+			symbols = Arrays.copyOf(symbols, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+		}
+	}
+
+	/**
+	 * @return the number of instructions (the ROM size of the program), of a
+	 *         drained program only those held since it was last drained
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @param index
+	 *            - the ROM address of the instruction.
+	 * @return the encoded word, 0 for a symbolic A instruction until the second
+	 *         pass resolved it.
+	 */
+	public short getWord(int index)
+	{
+		return words[index];
+	}
+
+	/**
+	 * Replaces the word of an instruction, used by the second pass to store
+	 * the resolved address of symbolic A instructions.
+	 *
+	 * @param index
+	 *            - the ROM address of the instruction.
+	 * @param word
+	 *            - the new machine word.
+	 */
+	public void setWord(int index, short word)
+	{
+		words[index] = word;
+	}
+
+	/**
+	 * @return a copy of the machine words of the program.
+	 */
+	public short[] getWords()
+	{
+		return Arrays.copyOf(words, size);
+	}
+
+	/**
+	 * @return a read only view of the machine words of the program.
+	 */
+	public ShortBuffer getWordBuffer()
+	{
+		return ShortBuffer.wrap(words, 0, size).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param index
+	 *            - the ROM address of the instruction.
+	 * @return the symbol id of the instruction or {@link #NO_SYMBOL}.
+	 */
+	public int getSymbol(int index)
+	{
+		return symbols[index];
+	}
+
+	/**
+	 * @param index
+	 *            - the ROM address of the instruction.
+	 * @return the source line number of the instruction.
+	 */
+	public int getLine(int index)
+	{
+		return lines[index];
+	}
+
+	/**
+	 * @return the number of distinct symbols referenced by A instructions.
+	 */
+	public int getSymbolCount()
+	{
+		return symbolIds.size();
+	}
+
+	/**
+	 * @param id
+	 *            - a symbol id returned by {@link #getSymbol(int)}.
+	 * @return the name of the symbol.
+	 */
+	public String getSymbolName(int id)
+	{
+		return symbolIds.getKey(id);
+	}
+
+	/**
+	 * @param id
+	 *            - a symbol id returned by {@link #getSymbol(int)}.
+	 * @return the ascii bytes of the symbol, must not be changed.
+	 */
+	public byte[] getSymbolKey(int id)
+	{
+		return symbolIds.getKeyBytes(id);
+	}
+}
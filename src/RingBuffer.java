@@ -0,0 +1,148 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer
+ * thread. The slots are preallocated, a full buffer makes the producer wait
+ * (backpressure) and an empty one the consumer, first spinning and then
+ * parking for short periods. If the thread on the other side dies it fails
+ * the buffer, so a waiting thread gives up instead of waiting forever.
+ * 
+ * @author Boris
+ *
+ * @param <T>
+ *            - the type of the items.
+ */
+public class RingBuffer<T>
+{
+	/**
+	 * Thrown to a thread waiting on a buffer the other side has failed.
+	 */
+	public static class FailedException extends IllegalStateException
+	{
+		private static final long serialVersionUID = 1L;
+
+		FailedException(Throwable cause)
+		{
+			super("the other side of the ring buffer failed", cause);
+		}
+	}
+
+	private static final int	SPINS		= 100;
+	private static final long	PARK_NANOS	= 20_000;
+
+	private final Object[]		slots;
+	private final int			mask;
+
+	// head is only written by the consumer and tail only by the producer
+	private final AtomicLong	head		= new AtomicLong();
+	private final AtomicLong	tail		= new AtomicLong();
+	private volatile boolean	closed		= false;
+	private volatile Throwable	failure		= null;
+
+	/**
+	 * Creates an empty ring buffer.
+	 * 
+	 * @param capacity
+	 *            - the number of slots, rounded up to a power of two.
+	 */
+	public RingBuffer(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		slots = new Object[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds the item, waiting while the buffer is full. Producer only.
+	 * 
+	 * @param item
+	 *            - the item, not null.
+	 * @throws FailedException
+	 *             if the buffer is full and the consumer failed.
+	 */
+	public void put(T item)
+	{
+		long position = tail.get();
+		for (int idle = 0; position - head.get() == slots.length; idle++)
+		{
+			checkFailure();
+			idle(idle);
+		}
+
+		slots[(int) position & mask] = item;
+		tail.lazySet(position + 1);
+	}
+
+	/**
+	 * Removes the oldest item, waiting while the buffer is empty. Consumer
+	 * only.
+	 * 
+	 * @return the item or null if the buffer is empty and closed.
+	 * @throws FailedException
+	 *             if the buffer is empty, not closed and the producer failed.
+	 */
+	@SuppressWarnings("unchecked")
+	public T take()
+	{
+		long position = head.get();
+		for (int idle = 0; position == tail.get(); idle++)
+		{
+			// closed is written after the last put so check tail again
+			if (closed && position == tail.get())
+			{
+				return null;
+			}
+			checkFailure();
+			idle(idle);
+		}
+
+		int slot = (int) position & mask;
+		T item = (T) slots[slot];
+		slots[slot] = null;
+		head.lazySet(position + 1);
+
+		return item;
+	}
+
+	/**
+	 * Signals that no more items will be put. Items already in the buffer can
+	 * still be taken.
+	 */
+	public void close()
+	{
+		closed = true;
+	}
+
+	/**
+	 * Signals that the thread on one side died, the thread on the other side
+	 * gets a {@link FailedException} instead of waiting for it.
+	 * 
+	 * @param cause
+	 *            - what ended the thread.
+	 */
+	public void fail(Throwable cause)
+	{
+		failure = cause;
+	}
+
+	private void checkFailure()
+	{
+		if (failure != null)
+		{
+			throw new FailedException(failure);
+		}
+	}
+
+	private static void idle(int idle)
+	{
+		if (idle < SPINS)
+		{
+			Thread.onSpinWait();
+		}
+		else
+		{
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+}
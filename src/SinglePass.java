@@ -0,0 +1,243 @@
+import java.util.Arrays;
+
+import exceptions.AssemblerException;
+
+/**
+ * Assembles in one pass over the source instead of the two of
+ * {@link Assembly#assemble(Parser)}. Every line is encoded as soon as it is
+ * read. An A instruction referring to a symbol that is not defined yet gets a
+ * placeholder word and joins the chain of fixup sites of that symbol, linked
+ * through an array next to the words, and the chain is patched when the label
+ * is defined. The symbols still undefined at the end are the variables,
+ * allocated from RAM 16 in the order they were first used, so the words are
+ * the same as with two passes. Since the source is read once it can come from
+ * any {@link Parser}, standard input included.
+ *
+ * @author Boris
+ *
+ */
+public class SinglePass
+{
+	// the end of a chain, and the chain of a symbol that got defined
+	private static final int	NONE	= -1;
+
+	private final Program		program;
+	private final SymbolTable	symbolTable;
+	private final Diagnostics	diagnostics;
+
+	// symbols used before they were defined in first use order, each with the
+	// last fixup site of its chain
+	private final SymbolMap		pending;
+	// fixup site -> the previous fixup site of the same symbol
+	private int[]				links;
+
+	private SinglePass(int maxErrors)
+	{
+		program = new Program();
+		symbolTable = new SymbolTable();
+		diagnostics = new Diagnostics(maxErrors);
+		pending = new SymbolMap();
+		links = new int[1024];
+	}
+
+	/**
+	 * Assembles the lines the parser has left.
+	 *
+	 * @param parser
+	 *            - the parser to read the program from.
+	 * @return the assembled program
+	 */
+	public static Assembly assemble(Parser parser)
+	{
+		return assemble(parser, Diagnostics.UNLIMITED);
+	}
+
+	/**
+	 * Assembles the lines the parser has left, stopping once the given number
+	 * of errors is found.
+	 *
+	 * @param parser
+	 *            - the parser to read the program from.
+	 * @param maxErrors
+	 *            - the most errors to report, at least 1.
+	 * @return the assembled program
+	 */
+	public static Assembly assemble(Parser parser, int maxErrors)
+	{
+		return assemble(parser, maxErrors, Stats.disabled());
+	}
+
+	/**
+	 * Assembles the lines the parser has left, timing and counting the pass
+	 * in the stats.
+	 *
+	 * @param parser
+	 *            - the parser to read the program from.
+	 * @param maxErrors
+	 *            - the most errors to report, at least 1.
+	 * @param stats
+	 *            - where the pass is recorded.
+	 * @return the assembled program
+	 */
+	public static Assembly assemble(Parser parser, int maxErrors, Stats stats)
+	{
+		SinglePass pass = new SinglePass(maxErrors);
+
+		stats.begin(Stats.Phase.ASSEMBLE);
+		boolean parsed = pass.run(parser);
+		int labels = pass.symbolTable.size();
+		int variables = parsed ? pass.allocateVariables() : -1;
+		stats.end(parser.getLineNumber(), pass.program.size());
+		stats.count(parser.getLineNumber(), pass.program.size(), labels, variables);
+
+		return new Assembly(pass.program, pass.symbolTable, pass.diagnostics);
+	}
+
+	/**
+	 * Encodes every line, collecting errors until the diagnostics are full
+	 * just like {@link Assembler#firstPass}.
+	 *
+	 * @return true if there were no errors
+	 */
+	private boolean run(Parser parser)
+	{
+		Code code = Code.getInstance();
+
+		boolean noParseErrors = true;
+
+		while (!diagnostics.isFull() && parser.hasMoreCommands())
+		{
+			try
+			{
+				parser.advance();
+
+				int word;
+				switch (parser.getCommandType())
+				{
+					case LABEL:
+						// the first definition wins, invalid names are ignored
+						if (SymbolTable.isvalidName(parser.getLine(), parser.getSymbolStart(), parser.getSymbolEnd()))
+						{
+							define(parser.getLine(), parser.getSymbolStart(), parser.getSymbolEnd());
+						}
+						break;
+					case A:
+						word = Assembler.encodeA(parser);
+						if (word >= 0)
+						{
+							program.addWord((short) word, parser.getLineNumber());
+						}
+						else
+						{
+							use(parser.getLine(), parser.getSymbolStart(), parser.getSymbolEnd(),
+									parser.getLineNumber());
+						}
+						break;
+					case C:
+						program.addWord(Assembler.encodeC(parser, code), parser.getLineNumber());
+						break;
+					default:
+						break;
+				}
+			}
+			catch (AssemblerException e)
+			{
+				diagnostics.add(e);
+				noParseErrors = false;
+			}
+		}
+
+		if (diagnostics.isFull() && parser.hasMoreCommands())
+		{
+			diagnostics.truncate();
+			parser.close();
+		}
+
+		return noParseErrors;
+	}
+
+	/**
+	 * Defines the label in {@code line[start, end)} at the next ROM address
+	 * and patches the sites that used it already.
+	 */
+	private void define(byte[] line, int start, int end)
+	{
+		int address = program.size();
+		if (symbolTable.lookupOrInsert(line, start, end, address) >= 0)
+		{
+			return;
+		}
+
+		int id = pending.find(line, start, end);
+		if (id != SymbolMap.ABSENT)
+		{
+			patch(pending.getValue(id), address);
+			pending.setValue(id, NONE);
+		}
+	}
+
+	/**
+	 * Appends an A instruction referring to the symbol in
+	 * {@code line[start, end)}, as a fixup site if the symbol is not defined
+	 * yet.
+	 */
+	private void use(byte[] line, int start, int end, int lineNumber)
+	{
+		int address = symbolTable.getAddress(line, start, end);
+		if (address >= 0)
+		{
+			program.addWord((short) (address & 0x7FFF), lineNumber);
+			return;
+		}
+
+		int site = program.size();
+		program.addWord((short) 0, lineNumber);
+
+		int count = pending.size();
+		int id = pending.intern(line, start, end);
+		if (site >= links.length)
+		{
+			links = Arrays.copyOf(links, Math.max(site + 1, links.length << 1));
+		}
+		links[site] = id == count ? NONE : pending.getValue(id);
+		pending.setValue(id, site);
+	}
+
+	/**
+	 * Allocates the symbols that were never defined as variables in the order
+	 * they were first used and patches their sites.
+	 *
+	 * @return the number of variables
+	 */
+	private int allocateVariables()
+	{
+		int nextRAM = 16;
+		for (int id = 0; id < pending.size(); id++)
+		{
+			int site = pending.getValue(id);
+			if (site == NONE)
+			{
+				continue;
+			}
+
+			byte[] name = pending.getKeyBytes(id);
+			symbolTable.lookupOrInsert(name, 0, name.length, nextRAM);
+			patch(site, nextRAM);
+			nextRAM++;
+		}
+
+		return nextRAM - 16;
+	}
+
+	/**
+	 * Stores the address into every site of the chain ending at the site.
+	 */
+	private void patch(int site, int address)
+	{
+		while (site != NONE)
+		{
+			program.setWord(site, (short) (address & 0x7FFF));
+			site = links[site];
+		}
+	}
+}
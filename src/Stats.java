@@ -0,0 +1,365 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Times the phases of an assembly and counts what it handled. Every phase is
+ * also emitted as a {@link PhaseEvent} for Flight Recorder. Timing and the
+ * counters are only kept when the stats are enabled (the --stats option),
+ * which is then printed as a one line JSON summary by {@link #toJson()}.
+ * Disabled stats cost an event object per phase while Flight Recorder runs
+ * and nothing per line. Until a recording has started no class of jdk.jfr is
+ * loaded, which matters for the start up of short runs.
+ *
+ * @author Boris
+ *
+ */
+public class Stats
+{
+	/**
+	 * The phases of an assembly. The passes of the parallel and pipelined
+	 * engines overlap and the single pass engine has one, those are timed as
+	 * a whole by {@link #ASSEMBLE}.
+	 */
+	enum Phase
+	{
+		/**
+		 * Lexing, encoding and collecting the labels.
+		 */
+		FIRST_PASS("firstPass"),
+		/**
+		 * The {@link Peephole} rules and outlining.
+		 */
+		OPTIMIZE("optimize"),
+		/**
+		 * Resolving the symbols.
+		 */
+		SECOND_PASS("secondPass"),
+		/**
+		 * All passes of an engine that doesn't run them one after the other.
+		 */
+		ASSEMBLE("assemble"),
+		/**
+		 * Writing the output file.
+		 */
+		OUTPUT("output");
+
+		private final String name;
+
+		private Phase(String name)
+		{
+			this.name = name;
+		}
+	}
+
+	private static final Phase[]	PHASES			= Phase.values();
+
+	// set by jdk.jfr once a recording has started, in process or by jcmd
+	private static final String		JFR_REPOSITORY	= "jdk.jfr.repository";
+
+	private final String			file;
+	private final boolean			enabled;
+
+	private PhaseEvent				event;
+	private Phase					current;
+	private long					start;
+	private long					startAllocated;
+
+	// per phase, -1 if the phase did not run
+	private final long[]			nanos;
+	private final long[]			allocated;
+
+	// -1 if not known
+	private long					lines;
+	private long					instructions;
+	private long					labels;
+	private long					variables;
+	private long					wordsSaved;
+	private long					cyclesSaved;
+	private long					bytesWritten;
+	private boolean					cached;
+
+	/**
+	 * @param file
+	 *            - the name of the assembled file for the summary.
+	 * @param enabled
+	 *            - true to time and count, false to only emit events.
+	 */
+	public Stats(String file, boolean enabled)
+	{
+		this.file = file;
+		this.enabled = enabled;
+
+		nanos = new long[PHASES.length];
+		allocated = new long[PHASES.length];
+		for (int i = 0; i < PHASES.length; i++)
+		{
+			nanos[i] = -1;
+			allocated[i] = -1;
+		}
+
+		lines = instructions = labels = variables = wordsSaved = cyclesSaved = bytesWritten = -1;
+	}
+
+	/**
+	 * @return stats that only emit events.
+	 */
+	public static Stats disabled()
+	{
+		return new Stats(null, false);
+	}
+
+	/**
+	 * @return true if phases are timed and counted
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Starts a phase, phases do not nest.
+	 *
+	 * @param phase
+	 *            - the phase to start.
+	 */
+	void begin(Phase phase)
+	{
+		current = phase;
+		if (System.getProperty(JFR_REPOSITORY) != null && Recorder.isInitialized())
+		{
+			event = new PhaseEvent();
+			event.begin();
+		}
+
+		if (enabled)
+		{
+			startAllocated = Allocation.currentThread();
+			start = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Ends the phase started last.
+	 *
+	 * @param lines
+	 *            - the lines handled by the phase or -1 if not known.
+	 * @param instructions
+	 *            - the instructions handled by the phase.
+	 */
+	void end(long lines, long instructions)
+	{
+		if (enabled)
+		{
+			nanos[current.ordinal()] = System.nanoTime() - start;
+			long allocatedNow = Allocation.currentThread();
+			if (allocatedNow >= 0)
+			{
+				allocated[current.ordinal()] = allocatedNow - startAllocated;
+			}
+		}
+
+		if (event != null)
+		{
+			event.end();
+			if (event.shouldCommit())
+			{
+				event.phase = current.name;
+				event.lines = lines;
+				event.instructions = instructions;
+				event.commit();
+			}
+			event = null;
+		}
+	}
+
+	/**
+	 * Ends the phase started last when its work ran on other threads. Their
+	 * allocations can't be read from here, so the phase has none.
+	 *
+	 * @param lines
+	 *            - the lines handled by the phase or -1 if not known.
+	 * @param instructions
+	 *            - the instructions handled by the phase.
+	 */
+	void endOnPool(long lines, long instructions)
+	{
+		Phase phase = current;
+		end(lines, instructions);
+		allocated[phase.ordinal()] = -1;
+	}
+
+	/**
+	 * Sets the counters of the source and the program.
+	 */
+	void count(long lines, long instructions, long labels, long variables)
+	{
+		this.lines = lines;
+		this.instructions = instructions;
+		this.labels = labels;
+		this.variables = variables;
+	}
+
+	/**
+	 * Sets what the {@link Peephole} optimizer saved.
+	 */
+	void countSavings(Peephole.Savings savings)
+	{
+		this.wordsSaved = savings.getWords();
+		this.cyclesSaved = savings.getCycles();
+	}
+
+	/**
+	 * Marks the output as copied from the {@link BuildCache}, nothing was
+	 * assembled or timed.
+	 */
+	void countCacheHit()
+	{
+		cached = true;
+	}
+
+	/**
+	 * Sets the number of bytes written to the output file.
+	 */
+	void countBytesWritten(long bytesWritten)
+	{
+		this.bytesWritten = bytesWritten;
+	}
+
+	/**
+	 * @return the summary as one line of JSON, counters that are not known
+	 *         are left out and a cache hit only names the file
+	 */
+	public String toJson()
+	{
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"file\":\"").append(escape(file)).append('"');
+		if (cached)
+		{
+			return json.append(",\"cached\":true}").toString();
+		}
+		field(json, "lines", lines);
+		field(json, "instructions", instructions);
+		field(json, "labels", labels);
+		field(json, "variables", variables);
+		field(json, "wordsSaved", wordsSaved);
+		if (wordsSaved >= 0)
+		{
+			// outlining costs cycles, so they can be negative
+			json.append(",\"cyclesSaved\":").append(cyclesSaved);
+		}
+		field(json, "bytesWritten", bytesWritten);
+
+		long totalNanos = 0;
+		long totalAllocated = 0;
+		// a phase run on a pool has no allocations, then there is no total
+		boolean allocationsKnown = true;
+		json.append(",\"phases\":{");
+		boolean first = true;
+		for (Phase phase : PHASES)
+		{
+			long phaseNanos = nanos[phase.ordinal()];
+			if (phaseNanos < 0)
+			{
+				continue;
+			}
+
+			totalNanos += phaseNanos;
+			totalAllocated += allocated[phase.ordinal()];
+			allocationsKnown &= allocated[phase.ordinal()] >= 0;
+
+			json.append(first ? "" : ",").append('"').append(phase.name).append("\":{");
+			json.append(String.format(Locale.ROOT, "\"ms\":%.3f", phaseNanos / 1e6));
+			if (lines >= 0 && phase != Phase.OUTPUT)
+			{
+				json.append(String.format(Locale.ROOT, ",\"linesPerSec\":%.0f",
+						lines * 1e9 / Math.max(phaseNanos, 1)));
+			}
+			field(json, "allocatedBytes", allocated[phase.ordinal()]);
+			json.append('}');
+			first = false;
+		}
+		json.append('}');
+
+		json.append(String.format(Locale.ROOT, ",\"ms\":%.3f", totalNanos / 1e6));
+		field(json, "allocatedBytes", allocationsKnown ? totalAllocated : -1);
+
+		return json.append('}').toString();
+	}
+
+	private static void field(StringBuilder json, String name, long value)
+	{
+		if (value >= 0)
+		{
+			json.append(",\"").append(name).append("\":").append(value);
+		}
+	}
+
+	private static String escape(String text)
+	{
+		if (text == null)
+		{
+			return "";
+		}
+
+		StringBuilder escaped = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\')
+			{
+				escaped.append('\\').append(c);
+			}
+			else if (c < ' ')
+			{
+				escaped.append(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * Asks Flight Recorder whether it runs. A holder class so jdk.jfr is only
+	 * loaded once a recording has started.
+	 */
+	private static class Recorder
+	{
+		static boolean isInitialized()
+		{
+			return FlightRecorder.isInitialized();
+		}
+	}
+
+	/**
+	 * Reads the bytes allocated by the current thread where the JVM supports
+	 * it. A holder class so the management beans are only loaded for enabled
+	 * stats.
+	 */
+	private static class Allocation
+	{
+		private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+		/**
+		 * @return the bytes allocated by the current thread so far or -1 if
+		 *         not supported
+		 */
+		static long currentThread()
+		{
+			if (THREADS instanceof com.sun.management.ThreadMXBean)
+			{
+				com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+				if (threads.isThreadAllocatedMemoryEnabled())
+				{
+					return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+				}
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Open addressing map from ascii symbols to ints without boxing. Keys can be
+ * looked up straight from a slice of a byte array so the hot paths never
+ * create a string. Every key gets a dense id in insertion order, which is
+ * also the order {@link #getKey(int)} and {@link #getValue(int)} use.
+ * 
+ * @author Boris
+ *
+ */
+public class SymbolMap
+{
+	public static final int	ABSENT				= -1;
+
+	private static final int	INITIAL_CAPACITY	= 64;
+
+	// slot -> id + 1, 0 for an empty slot, at most half full
+	private int[]				slots;
+	private int					mask;
+
+	// id -> entry
+	private byte[][]			keys;
+	private String[]			names;
+	private int[]				hashes;
+	private int[]				values;
+	private int					size;
+
+	/**
+	 * Creates an empty map.
+	 */
+	public SymbolMap()
+	{
+		slots = new int[INITIAL_CAPACITY * 2];
+		mask = slots.length - 1;
+
+		keys = new byte[INITIAL_CAPACITY][];
+		names = new String[INITIAL_CAPACITY];
+		hashes = new int[INITIAL_CAPACITY];
+		values = new int[INITIAL_CAPACITY];
+		size = 0;
+	}
+
+	/**
+	 * Creates a map with the same entries as another one. The keys are shared
+	 * (they are never changed) so this only copies a few arrays.
+	 * 
+	 * @param other
+	 *            - the map to copy.
+	 */
+	public SymbolMap(SymbolMap other)
+	{
+		slots = other.slots.clone();
+		mask = other.mask;
+
+		keys = other.keys.clone();
+		names = other.names.clone();
+		hashes = other.hashes.clone();
+		values = other.values.clone();
+		size = other.size;
+	}
+
+	/**
+	 * Finds the id of the key in {@code buffer[start, end)}.
+	 * 
+	 * @return the id or {@link #ABSENT}
+	 */
+	public int find(byte[] buffer, int start, int end)
+	{
+		int hash = hash(buffer, start, end);
+		for (int slot = hash & mask;; slot = (slot + 1) & mask)
+		{
+			int id = slots[slot] - 1;
+			if (id < 0)
+			{
+				return ABSENT;
+			}
+			if (hashes[id] == hash && equals(keys[id], buffer, start, end))
+			{
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * Finds the id of the key.
+	 * 
+	 * @return the id or {@link #ABSENT}
+	 */
+	public int find(String key)
+	{
+		int hash = hash(key);
+		for (int slot = hash & mask;; slot = (slot + 1) & mask)
+		{
+			int id = slots[slot] - 1;
+			if (id < 0)
+			{
+				return ABSENT;
+			}
+			if (hashes[id] == hash && equals(keys[id], key))
+			{
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * Finds the id of the key in {@code buffer[start, end)}, adding the key
+	 * with the value 0 if it is not in the map yet. New keys get the id
+	 * {@code size() - 1}.
+	 * 
+	 * @return the id of the key
+	 */
+	public int intern(byte[] buffer, int start, int end)
+	{
+		int hash = hash(buffer, start, end);
+		int slot = hash & mask;
+		for (;; slot = (slot + 1) & mask)
+		{
+			int id = slots[slot] - 1;
+			if (id < 0)
+			{
+				break;
+			}
+			if (hashes[id] == hash && equals(keys[id], buffer, start, end))
+			{
+				return id;
+			}
+		}
+
+		return insert(slot, Arrays.copyOfRange(buffer, start, end), hash);
+	}
+
+	/**
+	 * Same as {@link #intern(byte[], int, int)} for a string key, which has to
+	 * be ascii.
+	 * 
+	 * @return the id of the key
+	 */
+	public int intern(String key)
+	{
+		byte[] bytes = key.getBytes(StandardCharsets.US_ASCII);
+		return intern(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Puts a new key into the empty slot and grows the map when it is half
+	 * full.
+	 */
+	private int insert(int slot, byte[] key, int hash)
+	{
+		if (size == keys.length)
+		{
+			int capacity = size << 1;
+			keys = Arrays.copyOf(keys, capacity);
+			names = Arrays.copyOf(names, capacity);
+			hashes = Arrays.copyOf(hashes, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		int id = size++;
+		keys[id] = key;
+		hashes[id] = hash;
+		values[id] = 0;
+		slots[slot] = id + 1;
+
+		if (size * 2 > slots.length)
+		{
+			rehash(slots.length << 1);
+		}
+
+		return id;
+	}
+
+	private void rehash(int capacity)
+	{
+		slots = new int[capacity];
+		mask = capacity - 1;
+
+		for (int id = 0; id < size; id++)
+		{
+			int slot = hashes[id] & mask;
+			while (slots[slot] != 0)
+			{
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = id + 1;
+		}
+	}
+
+	/**
+	 * @return the number of keys
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the key with the id as a string, created once and then cached.
+	 */
+	public String getKey(int id)
+	{
+		if (names[id] == null)
+		{
+			names[id] = new String(keys[id], StandardCharsets.US_ASCII);
+		}
+
+		return names[id];
+	}
+
+	/**
+	 * @return the ascii bytes of the key with the id, must not be changed.
+	 */
+	public byte[] getKeyBytes(int id)
+	{
+		return keys[id];
+	}
+
+	/**
+	 * @return the value of the key with the id.
+	 */
+	public int getValue(int id)
+	{
+		return values[id];
+	}
+
+	/**
+	 * Sets the value of the key with the id.
+	 */
+	public void setValue(int id, int value)
+	{
+		values[id] = value;
+	}
+
+	private static int hash(byte[] buffer, int start, int end)
+	{
+		int hash = 0;
+		for (int i = start; i < end; i++)
+		{
+			hash = 31 * hash + buffer[i];
+		}
+
+		return mix(hash);
+	}
+
+	private static int hash(String key)
+	{
+		int hash = 0;
+		for (int i = 0; i < key.length(); i++)
+		{
+			hash = 31 * hash + key.charAt(i);
+		}
+
+		return mix(hash);
+	}
+
+	/**
+	 * Spreads the bits of the polynomial hash since probing only uses the low
+	 * ones.
+	 */
+	private static int mix(int hash)
+	{
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean equals(byte[] key, byte[] buffer, int start, int end)
+	{
+		return Arrays.equals(key, 0, key.length, buffer, start, end);
+	}
+
+	private static boolean equals(byte[] key, String other)
+	{
+		if (key.length != other.length())
+		{
+			return false;
+		}
+
+		for (int i = 0; i < key.length; i++)
+		{
+			if (key[i] != other.charAt(i))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -1,43 +1,83 @@
-import java.util.HashMap;
-import java.util.function.IntPredicate;
-
 /**
- * Class for storing RAM and ROM address of symbols in a hack asm file.
+ * Class for storing RAM and ROM address of symbols in a hack asm file. The
+ * predefined symbols live in one frozen map shared by every table, each table
+ * starts as a copy of its few small arrays and then holds its own labels and
+ * variables. Creating a table is therefore cheap and tables of different
+ * assemblies can be used from different threads, a single table is not thread
+ * safe. Symbols can be given as strings or as slices of ascii bytes, the
+ * latter never create a string.
  * 
  * @author Boris
  *
  */
 public class SymbolTable
 {
-	final public IntPredicate			FIRST_CHAR;
-	final public IntPredicate			REST_CHAR;
+	private static final byte		FIRST		= 1;
+	private static final byte		REST		= 2;
 
-	private HashMap<String, Integer>	symbolTable;
+	// character class of every ascii char, FIRST | REST or REST or nothing
+	private static final byte[]		CHAR_CLASS	= new byte[128];
 
-	/**
-	 * Initializes {@code SymbolTable} with predefined symbols.
-	 */
-	public SymbolTable()
+	private static final SymbolMap	PREDEFINED;
+
+	static
 	{
-		// R0 to R15 the aliases + kbd and screen + 10 for initial symbols
-		symbolTable = new HashMap<>(15 + 7 + 10);
+		for (int c = 'a'; c <= 'z'; c++)
+		{
+			CHAR_CLASS[c] = FIRST | REST;
+			CHAR_CLASS[Character.toUpperCase(c)] = FIRST | REST;
+		}
+		for (char c : "_.$:".toCharArray())
+		{
+			CHAR_CLASS[c] = FIRST | REST;
+		}
+		for (int c = '0'; c <= '9'; c++)
+		{
+			CHAR_CLASS[c] = REST;
+		}
+
+		// R0 to R15 the aliases + kbd and screen
+		PREDEFINED = new SymbolMap();
 
 		for (int i = 0; i < 16; ++i)
 		{
-			symbolTable.put("R" + Integer.toString(i), i);
+			put(PREDEFINED, "R".concat(Integer.toString(i)), i);
 		}
 
-		symbolTable.put("SP", 0);
-		symbolTable.put("LCL", 1);
-		symbolTable.put("ARG", 2);
-		symbolTable.put("THIS", 3);
-		symbolTable.put("THAT", 4);
+		put(PREDEFINED, "SP", 0);
+		put(PREDEFINED, "LCL", 1);
+		put(PREDEFINED, "ARG", 2);
+		put(PREDEFINED, "THIS", 3);
+		put(PREDEFINED, "THAT", 4);
 
-		symbolTable.put("SCREEN", 16384);
-		symbolTable.put("KBD", 24576);
+		put(PREDEFINED, "SCREEN", 16384);
+		put(PREDEFINED, "KBD", 24576);
+	}
 
-		FIRST_CHAR = ((IntPredicate) Character::isLetter).or(c -> "_.$:".indexOf(c) != -1);
-		REST_CHAR = FIRST_CHAR.or(Character::isDigit);
+	private static void put(SymbolMap map, String symbol, int address)
+	{
+		map.setValue(map.intern(symbol), address);
+	}
+
+	private SymbolMap				symbolTable;
+
+	/**
+	 * Initializes {@code SymbolTable} with predefined symbols.
+	 */
+	public SymbolTable()
+	{
+		symbolTable = new SymbolMap(PREDEFINED);
+	}
+
+	/**
+	 * Creates a table with the same entries as another one.
+	 * 
+	 * @param other
+	 *            - the table to copy.
+	 */
+	public SymbolTable(SymbolTable other)
+	{
+		symbolTable = new SymbolMap(other.symbolTable);
 	}
 
 	/**
@@ -59,10 +99,33 @@ public class SymbolTable
 			return false;
 		}
 
-		// only works if no null key allowed which is true
-		// also should always return true (added something new)
-		// contains should be checked before hand
-		return symbolTable.put(symbol, address) == null;
+		int size = symbolTable.size();
+		int id = symbolTable.intern(symbol);
+		symbolTable.setValue(id, address);
+
+		return id == size;
+	}
+
+	/**
+	 * Looks up the symbol in {@code buffer[start, end)} and adds it with the
+	 * address if it is not in the table yet, hashing it only once. The symbol
+	 * has to be valid (see {@link #isvalidName(byte[], int, int)}).
+	 * 
+	 * @param address
+	 *            - address (RAM or ROM) to associate a new symbol with.
+	 * @return the address the symbol already had or -1 if it was added.
+	 */
+	public int lookupOrInsert(byte[] buffer, int start, int end, int address)
+	{
+		int size = symbolTable.size();
+		int id = symbolTable.intern(buffer, start, end);
+		if (id < size)
+		{
+			return symbolTable.getValue(id);
+		}
+
+		symbolTable.setValue(id, address);
+		return -1;
 	}
 
 	/**
@@ -74,7 +137,7 @@ public class SymbolTable
 	 */
 	public boolean contains(String symbol)
 	{
-		return symbolTable.containsKey(symbol);
+		return symbolTable.find(symbol) != SymbolMap.ABSENT;
 	}
 
 	/**
@@ -82,12 +145,84 @@ public class SymbolTable
 	 * 
 	 * @param symbol
 	 *            - the symbol to get the address for.
-	 * @return the address associated with the symbol or null if there is no
-	 *         entry for that symbol.
+	 * @return the address associated with the symbol
+	 * @throws NullPointerException
+	 *             if there is no entry for that symbol.
 	 */
 	public int getAddress(String symbol)
 	{
-		return symbolTable.get(symbol);
+		int id = symbolTable.find(symbol);
+		if (id == SymbolMap.ABSENT)
+		{
+			throw new NullPointerException("No entry for " + symbol);
+		}
+
+		return symbolTable.getValue(id);
+	}
+
+	/**
+	 * Get the address of the symbol in {@code buffer[start, end)}.
+	 * 
+	 * @return the address associated with the symbol or -1 if there is no
+	 *         entry for that symbol.
+	 */
+	public int getAddress(byte[] buffer, int start, int end)
+	{
+		int id = symbolTable.find(buffer, start, end);
+		return id == SymbolMap.ABSENT ? -1 : symbolTable.getValue(id);
+	}
+
+	/**
+	 * @return the number of symbols added to this table, without the
+	 *         predefined symbols.
+	 */
+	public int size()
+	{
+		return symbolTable.size() - PREDEFINED.size();
+	}
+
+	/**
+	 * Gets a symbol added to this table without creating a string, its
+	 * address is at the same index of {@link #getAddresses()}.
+	 * 
+	 * @param index
+	 *            - the index of the symbol in the order the symbols were
+	 *            added, without the predefined symbols.
+	 * @return the ascii bytes of the symbol, must not be changed.
+	 */
+	public byte[] getKeyBytes(int index)
+	{
+		return symbolTable.getKeyBytes(PREDEFINED.size() + index);
+	}
+
+	/**
+	 * @return the addresses of the symbols added to this table in the order
+	 *         they were added, without the predefined symbols.
+	 */
+	public int[] getAddresses()
+	{
+		int[] addresses = new int[size()];
+		for (int i = 0; i < addresses.length; i++)
+		{
+			addresses[i] = symbolTable.getValue(PREDEFINED.size() + i);
+		}
+
+		return addresses;
+	}
+
+	/**
+	 * Moves every symbol added to this table, such as the labels after
+	 * instructions were removed before them.
+	 * 
+	 * @param addresses
+	 *            - the new address for every old address.
+	 */
+	public void relocate(int[] addresses)
+	{
+		for (int id = PREDEFINED.size(); id < symbolTable.size(); id++)
+		{
+			symbolTable.setValue(id, addresses[symbolTable.getValue(id)]);
+		}
 	}
 
 	/**
@@ -97,24 +232,64 @@ public class SymbolTable
 	 *            - symbol to test.
 	 * @return
 	 */
-	private boolean isvalidName(String symbol)
+	public static boolean isvalidName(String symbol)
 	{
-		if (symbol == null || symbol.isEmpty())
+		if (symbol == null || symbol.isEmpty() || !isFirstChar(symbol.charAt(0)))
 		{
 			return false;
 		}
 
-		// at least one char needed here for the substr which is true
-		return FIRST_CHAR.test(symbol.charAt(0))
-				&& symbol.substring(1, symbol.length()).chars()
-						.allMatch(REST_CHAR);
+		for (int i = 1; i < symbol.length(); i++)
+		{
+			if (!isRestChar(symbol.charAt(i)))
+			{
+				return false;
+			}
+		}
 
-		//TODO consider @formatter:off
-//		return FIRST_CHAR.test(symbol.charAt(0))
-//				&& symbol.chars()
-//						.skip(1)
-//						.allMatch(REST_CHAR);
-//		@formatter:on
+		return true;
+	}
+
+	/**
+	 * Tests the A or LABEL symbol in {@code buffer[start, end)} for validity
+	 * according to hack asm rules.
+	 * 
+	 * @return true if the symbol is valid
+	 */
+	public static boolean isvalidName(byte[] buffer, int start, int end)
+	{
+		if (start == end || !isFirstChar(buffer[start]))
+		{
+			return false;
+		}
+
+		for (int i = start + 1; i < end; i++)
+		{
+			if (!isRestChar(buffer[i]))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if a symbol may start with the char, a letter or one of
+	 *         {@code _.$:}
+	 */
+	public static boolean isFirstChar(int c)
+	{
+		return c >= 0 && c < 128 && (CHAR_CLASS[c] & FIRST) != 0;
+	}
+
+	/**
+	 * @return true if the char may be in a symbol after the first char, a
+	 *         letter, a digit or one of {@code _.$:}
+	 */
+	public static boolean isRestChar(int c)
+	{
+		return c >= 0 && c < 128 && (CHAR_CLASS[c] & REST) != 0;
 	}
 
 	/*
@@ -126,6 +301,13 @@ public class SymbolTable
 	 */
 	public String toString()
 	{
-		return symbolTable.toString();
+		StringBuilder all = new StringBuilder("{");
+		for (int id = 0; id < symbolTable.size(); id++)
+		{
+			all.append(id == 0 ? "" : ", ").append(symbolTable.getKey(id)).append('=')
+					.append(symbolTable.getValue(id));
+		}
+
+		return all.append('}').toString();
 	}
 }
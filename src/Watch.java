@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import exceptions.AssemblerException;
+
+/**
+ * Assembles the inputs and then again every time one of them is saved, until
+ * the process is stopped. Each file keeps an {@link IncrementalAssembly} so a
+ * save only costs lexing the edited lines (and resolving the symbols if the
+ * labels or variables moved). The output file is only written when the file
+ * assembles, so the last good output stays in place while there are errors.
+ *
+ * @author Boris
+ *
+ */
+public class Watch
+{
+	// editors often save in several writes, wait for them to settle
+	private static final long SETTLE_MILLIS = 50;
+
+	/**
+	 * Assembles and watches all inputs of the options until interrupted.
+	 *
+	 * @param options
+	 *            - the command line options.
+	 * @throws IOException
+	 *             if the inputs could not be listed or watched.
+	 */
+	public static void run(Options options) throws IOException
+	{
+		Code.getInstance();
+
+		Map<Path, IncrementalAssembly> assemblies = new LinkedHashMap<>();
+		for (Path file : Batch.expand(options.getInputFileNames()))
+		{
+			assemblies.put(file.toAbsolutePath().normalize(), new IncrementalAssembly(options.getMaxErrors()));
+		}
+
+		try (WatchService watcher = FileSystems.getDefault().newWatchService())
+		{
+			Set<Path> directories = new HashSet<>();
+			for (Path file : assemblies.keySet())
+			{
+				if (directories.add(file.getParent()))
+				{
+					file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_MODIFY);
+				}
+			}
+
+			for (Map.Entry<Path, IncrementalAssembly> file : assemblies.entrySet())
+			{
+				assemble(file.getKey(), file.getValue(), options.getFormat());
+			}
+			System.out.println("Watching " + assemblies.size() + " files, stop with Ctrl+C");
+
+			while (true)
+			{
+				Set<Path> changed = new LinkedHashSet<>();
+				WatchKey key = watcher.take();
+				while (key != null)
+				{
+					Path directory = (Path) key.watchable();
+					for (WatchEvent<?> event : key.pollEvents())
+					{
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+						{
+							changed.addAll(assemblies.keySet());
+						}
+						else
+						{
+							Path file = directory.resolve((Path) event.context());
+							if (assemblies.containsKey(file))
+							{
+								changed.add(file);
+							}
+						}
+					}
+					key.reset();
+					key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+				}
+
+				for (Path file : changed)
+				{
+					assemble(file, assemblies.get(file), options.getFormat());
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Assembles the current version of the file and reports how it went.
+	 */
+	private static void assemble(Path input, IncrementalAssembly incremental, OutputFormat format)
+	{
+		long start = System.nanoTime();
+
+		byte[] source;
+		try
+		{
+			source = Files.readAllBytes(input);
+		}
+		catch (IOException ex)
+		{
+			System.err.println(input + ": Could not open file \"" + input + "\".");
+			return;
+		}
+
+		Assembly assembly = incremental.update(source);
+		if (!assembly.succeeded())
+		{
+			System.err.println(input + ": " + assembly.getDiagnostics().size() + " errors");
+			for (AssemblerException e : assembly.getDiagnostics())
+			{
+				System.err.println(e.parseFailDescriptor());
+			}
+			if (assembly.isTruncated())
+			{
+				System.err.println("Stopped after " + assembly.getDiagnostics().size() + " errors.");
+			}
+			return;
+		}
+
+		String[] pathSections = Assembler.dissectPath(input.toString());
+		Path output = Paths.get(pathSections[0] + pathSections[1] + format.getExtension());
+		try (WordWriter outputFile = new WordWriter(FileChannel.open(output,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING),
+				format))
+		{
+			outputFile.write(assembly.getWordBuffer());
+		}
+		catch (IOException ex)
+		{
+			System.err.println(input + ": Could not write output file " + output);
+			return;
+		}
+
+		System.out.printf("%s: %d words in %.2f ms (%d of %d regions lexed)%n", input,
+				assembly.getWordBuffer().remaining(), (System.nanoTime() - start) / 1e6,
+				incremental.getRelexedRegions(), incremental.getRegionCount());
+	}
+}
@@ -0,0 +1,247 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes machine words in one of the {@link OutputFormat}s. For the .hack
+ * format every byte value has its 8 ascii bits precomputed so a word is two
+ * table copies and a newline. All formats are put into a large reusable
+ * buffer, which is handed to the channel whenever it fills up.
+ * 
+ * @author Boris
+ *
+ */
+public class WordWriter implements Closeable
+{
+	private static final int	BUFFER_SIZE		= 1 << 20;
+	// longest thing written at once, an Intel HEX data record
+	private static final int	MAX_WRITE		= 1 + 2 + 4 + 2 + 2 * 16 + 2 + 1;
+	private static final int	HEX_RECORD_SIZE	= 16;
+
+	private static final byte[]	HEX_DIGITS		= "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+	// BITS[b * 8, b * 8 + 8) are the ascii bits of the byte b, big endian
+	private static final byte[]	BITS		= new byte[256 * 8];
+
+	static
+	{
+		for (int b = 0; b < 256; b++)
+		{
+			for (int bit = 0; bit < 8; bit++)
+			{
+				BITS[b * 8 + bit] = (byte) (((b >>> (7 - bit)) & 1) + '0');
+			}
+		}
+	}
+
+	private final WritableByteChannel	channel;
+	private final OutputFormat			format;
+	private final byte[]				buffer;
+	private final ByteBuffer			wrapped;
+	private int							length;
+	private long						bytesWritten;
+
+	// Intel HEX state, the pending data record and the byte address of the
+	// next byte and of the last extended linear address record
+	private final byte[]				record;
+	private int							recordLength;
+	private int							address;
+	private int							upperAddress;
+
+	/**
+	 * Creates a writer writing .hack lines to the channel. The channel is
+	 * closed when the writer is closed.
+	 * 
+	 * @param channel
+	 *            - where the output goes.
+	 */
+	public WordWriter(WritableByteChannel channel)
+	{
+		this(channel, OutputFormat.HACK);
+	}
+
+	/**
+	 * Creates a writer writing the format to the channel. The channel is
+	 * closed when the writer is closed.
+	 * 
+	 * @param channel
+	 *            - where the output goes.
+	 * @param format
+	 *            - the format of the output.
+	 */
+	public WordWriter(WritableByteChannel channel, OutputFormat format)
+	{
+		this.channel = channel;
+		this.format = format;
+		buffer = new byte[BUFFER_SIZE];
+		wrapped = ByteBuffer.wrap(buffer);
+		length = 0;
+		bytesWritten = 0;
+
+		record = new byte[HEX_RECORD_SIZE];
+		recordLength = 0;
+		address = 0;
+		upperAddress = 0;
+	}
+
+	/**
+	 * Writes the word in the format of the writer.
+	 * 
+	 * @param word
+	 *            - the machine word.
+	 * @throws IOException
+	 *             if the buffer had to be flushed and that failed.
+	 */
+	public void write(short word) throws IOException
+	{
+		if (length > BUFFER_SIZE - MAX_WRITE)
+		{
+			flush();
+		}
+
+		switch (format)
+		{
+			case HACK:
+				System.arraycopy(BITS, ((word >>> 8) & 0xFF) * 8, buffer, length, 8);
+				System.arraycopy(BITS, (word & 0xFF) * 8, buffer, length + 8, 8);
+				buffer[length + 16] = '\n';
+				length += 17;
+				break;
+			case BIN:
+				buffer[length] = (byte) (word >>> 8);
+				buffer[length + 1] = (byte) word;
+				length += 2;
+				break;
+			case HEX:
+				record[recordLength++] = (byte) (word >>> 8);
+				record[recordLength++] = (byte) word;
+				if (recordLength == HEX_RECORD_SIZE)
+				{
+					writeDataRecord();
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Writes the remaining words of the buffer.
+	 * 
+	 * @param words
+	 *            - the machine words, the position is advanced to the limit.
+	 * @throws IOException
+	 *             if the buffer had to be flushed and that failed.
+	 */
+	public void write(ShortBuffer words) throws IOException
+	{
+		while (words.hasRemaining())
+		{
+			write(words.get());
+		}
+	}
+
+	/**
+	 * Writes the pending Intel HEX data record, preceded by an extended linear
+	 * address record when it starts in a new 64K segment. Records are 16 bytes
+	 * and start at 0 so a record never crosses a segment.
+	 */
+	private void writeDataRecord() throws IOException
+	{
+		if (length > BUFFER_SIZE - 2 * MAX_WRITE)
+		{
+			flush();
+		}
+
+		if ((address >>> 16) != upperAddress)
+		{
+			upperAddress = address >>> 16;
+			byte[] upper = { (byte) (upperAddress >>> 8), (byte) upperAddress };
+			writeHexRecord(0x04, 0, upper, 2);
+		}
+
+		writeHexRecord(0x00, address & 0xFFFF, record, recordLength);
+		address += recordLength;
+		recordLength = 0;
+	}
+
+	/**
+	 * Puts a record {@code :LLAAAATT<data>CC} into the buffer.
+	 */
+	private void writeHexRecord(int type, int offset, byte[] data, int dataLength)
+	{
+		int sum = dataLength + (offset >>> 8) + (offset & 0xFF) + type;
+
+		buffer[length++] = ':';
+		putHexByte(dataLength);
+		putHexByte(offset >>> 8);
+		putHexByte(offset & 0xFF);
+		putHexByte(type);
+		for (int i = 0; i < dataLength; i++)
+		{
+			putHexByte(data[i] & 0xFF);
+			sum += data[i] & 0xFF;
+		}
+		putHexByte(-sum & 0xFF);
+		buffer[length++] = '\n';
+	}
+
+	private void putHexByte(int b)
+	{
+		buffer[length++] = HEX_DIGITS[b >>> 4];
+		buffer[length++] = HEX_DIGITS[b & 0xF];
+	}
+
+	/**
+	 * Hands everything buffered so far to the channel.
+	 * 
+	 * @throws IOException
+	 *             if writing to the channel failed.
+	 */
+	public void flush() throws IOException
+	{
+		wrapped.clear().limit(length);
+		while (wrapped.hasRemaining())
+		{
+			channel.write(wrapped);
+		}
+
+		bytesWritten += length;
+		length = 0;
+	}
+
+	/**
+	 * @return the number of bytes handed to the channel so far
+	 */
+	public long getBytesWritten()
+	{
+		return bytesWritten;
+	}
+
+	/**
+	 * Finishes the format (the last data record and the end of file record of
+	 * Intel HEX), flushes and closes the channel.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			if (format == OutputFormat.HEX)
+			{
+				if (recordLength > 0)
+				{
+					writeDataRecord();
+				}
+				writeHexRecord(0x01, 0, record, 0);
+			}
+
+			flush();
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+}
@@ -2,7 +2,9 @@
 package exceptions;
 
 /**
- * Class for signaling an assembling error
+ * Class for signaling an assembling error. Errors are expected input (a
+ * single file can have thousands) so no stack trace is filled in and the
+ * message is only put together when asked for.
  * 
  * @author Boris
  *
@@ -12,10 +14,15 @@ public class AssemblerException extends RuntimeException
 
 	private static final long	serialVersionUID	= -3354399774996988932L;
 
-	// super.message will have the reason
+	// the message is made from expected and why on demand
 
 	private int					line;
+	private int					column;
+	private int					endColumn;
+	private ErrorCode			code;
 	private String				problematicString;
+	private String				expected;
+	private String				why;
 
 	/**
 	 * Constructs the exception with the given values. Use
@@ -34,9 +41,57 @@ public class AssemblerException extends RuntimeException
 	 */
 	public AssemblerException(int line, String problematicString, String message)
 	{
-		super(message);
+		this(line, 0, 0, ErrorCode.OTHER, problematicString, null, message);
+	}
+
+	/**
+	 * Constructs the exception with the given values. Use
+	 * {@code AssemblerExceptionBuilder} instead to construct exceptions for
+	 * readability and helper functions when creating the message.
+	 * 
+	 * @param line
+	 *            - the line number of where the problem happened in the source
+	 *            text.
+	 * @param column
+	 *            - the first column (starting at 1) of the problem in the line
+	 *            or 0 if unknown.
+	 * @param endColumn
+	 *            - the column after the problem or 0 if unknown.
+	 * @param code
+	 *            - the kind of problem.
+	 * @param problematicString
+	 *            - the string that caused the exception.
+	 * @param expected
+	 *            - the expected chars or null.
+	 * @param why
+	 *            - the reason for the exception or null.
+	 * 
+	 * @see AssemblerExceptionBuilder
+	 */
+	public AssemblerException(int line, int column, int endColumn, ErrorCode code, String problematicString,
+			String expected, String why)
+	{
+		super(null, null, false, false);
 		this.line = line;
+		this.column = column;
+		this.endColumn = endColumn;
+		this.code = code;
 		this.problematicString = problematicString;
+		this.expected = expected;
+		this.why = why;
+	}
+
+	/**
+	 * Copies the exception with the line moved by an offset, for errors found
+	 * in a piece of a larger source.
+	 * 
+	 * @param offset
+	 *            - lines before the piece.
+	 * @return the moved copy
+	 */
+	public AssemblerException moveLines(int offset)
+	{
+		return new AssemblerException(line + offset, column, endColumn, code, problematicString, expected, why);
 	}
 
 	/**
@@ -47,6 +102,30 @@ public class AssemblerException extends RuntimeException
 		return line;
 	}
 
+	/**
+	 * @return the column (starting at 1) of the problem or 0 if unknown
+	 */
+	public int getColumn()
+	{
+		return column;
+	}
+
+	/**
+	 * @return the column after the problem or 0 if unknown
+	 */
+	public int getEndColumn()
+	{
+		return endColumn;
+	}
+
+	/**
+	 * @return the kind of problem
+	 */
+	public ErrorCode getCode()
+	{
+		return code;
+	}
+
 	/**
 	 * @return the problematicString
 	 */
@@ -55,6 +134,54 @@ public class AssemblerException extends RuntimeException
 		return problematicString;
 	}
 
+	/**
+	 * Puts the message together from the expected chars and the reason.
+	 */
+	@Override
+	public String getMessage()
+	{
+		StringBuilder message = new StringBuilder();
+
+		if (expected != null)
+		{
+			appendExpected(message);
+		}
+
+		if (expected != null && why != null)
+		{
+			message.append(" as ");
+		}
+
+		if (why != null)
+		{
+			message.append(why);
+		}
+
+		return message.toString();
+	}
+
+	/**
+	 * Appends {@code 'a' expected}, {@code 'a' or 'b' expected} or
+	 * {@code 'a', 'b', or 'c' expected}.
+	 */
+	private void appendExpected(StringBuilder message)
+	{
+		for (int i = 0; i < expected.length(); i++)
+		{
+			if (i > 0)
+			{
+				message.append(expected.length() == 2 ? " " : ", ");
+			}
+			if (i > 0 && i == expected.length() - 1)
+			{
+				message.append("or ");
+			}
+			message.append('\'').append(expected.charAt(i)).append('\'');
+		}
+
+		message.append(" expected");
+	}
+
 	/**
 	 * @return A formatted string for displaying the error to the user. Use this instead of {@link #toString()}.
 	 */
@@ -1,11 +1,10 @@
 
 package exceptions;
 
-import java.util.Optional;
-
 /**
  * A builder for {@link AssemblerException} to help with readability and to help
- * with creating the message.
+ * with creating the message. The message itself is only put together by the
+ * exception when it is asked for.
  * 
  * @author Boris
  *
@@ -14,10 +13,13 @@ public class AssemblerExceptionBuilder
 {
 	private Integer				lineNum				= null;
 	private String				problematicString	= null;
+	private int					column				= 0;
+	private int					endColumn			= 0;
+	private ErrorCode			code				= ErrorCode.OTHER;
 
 	// at least one of the following is needed for a successful build
-	private Optional<String>	expected			= Optional.empty();
-	private Optional<String>	why					= Optional.empty();
+	private String				expected			= null;
+	private String				why					= null;
 
 	// public or not? ... i already have a static instance getter so.. probably
 	// not? ¯\_(ツ)_/¯
@@ -61,6 +63,22 @@ public class AssemblerExceptionBuilder
 		return this;
 	}
 
+	/**
+	 * Sets the columns of the problem in the problematicString.
+	 * 
+	 * @param column
+	 *            - the first column (starting at 1) of the problem.
+	 * @param endColumn
+	 *            - the column after the problem.
+	 * @return the {@link AssemblerExceptionBuilder} itself
+	 */
+	public AssemblerExceptionBuilder columns(int column, int endColumn)
+	{
+		this.column = column;
+		this.endColumn = endColumn;
+		return this;
+	}
+
 	/**
 	 * Helper method for creating a message when expecting characters but not
 	 * receiving them. Can be combined with {@link #as(String)}.
@@ -71,34 +89,14 @@ public class AssemblerExceptionBuilder
 	 */
 	public AssemblerExceptionBuilder expected(String expectedChars)
 	{
-		if (expectedChars.length() == 1)
-		{
-			expected = Optional.of(String.format("'%s' expected", expectedChars));
-		}
-		else if (expectedChars.length() == 2)
-		{
-			expected = Optional
-					.of(String.format("'%c' or '%c' expected", expectedChars.charAt(0), expectedChars.charAt(1)));
-		}
-		else if (expectedChars.length() > 2)
-		{
-			StringBuilder expectedCharsStr = expectedChars.chars()
-					.limit(expectedChars.length() - 1)
-					.collect(StringBuilder::new,
-							(strBuilder, charAsInt) -> strBuilder.append('\'').appendCodePoint(charAsInt).append("', "),
-							StringBuilder::append);
-
-			expectedCharsStr.append("or '")
-					.append(expectedCharsStr.charAt(expectedCharsStr.length() - 1))
-					.append("' expected");
-
-			expected = Optional.of(expectedCharsStr.toString());
-		}
-		else
+		if (expectedChars.isEmpty())
 		{
 			throw new IllegalArgumentException("expectedChars needs to have at least one char");
 		}
 
+		expected = expectedChars;
+		code = ErrorCode.MISSING_CHARS;
+
 		return this;
 	}
 
@@ -112,7 +110,26 @@ public class AssemblerExceptionBuilder
 	 */
 	public AssemblerExceptionBuilder as(String why)
 	{
-		this.why = Optional.of(why);
+		this.why = why;
+		return this;
+	}
+
+	/**
+	 * Helper method for explaining the exception with one of the known kinds
+	 * of errors. Can be combined with {@link #expected(String)}.
+	 * 
+	 * @param code
+	 *            - the kind of error, its reason becomes the reason of the
+	 *            exception.
+	 * @return the {@link AssemblerExceptionBuilder} itself
+	 */
+	public AssemblerExceptionBuilder as(ErrorCode code)
+	{
+		this.code = code;
+		if (code.getReason() != null)
+		{
+			this.why = code.getReason();
+		}
 		return this;
 	}
 
@@ -126,6 +143,7 @@ public class AssemblerExceptionBuilder
 	 * <ul>
 	 * <li>{@link #expected(String)}</li>
 	 * <li>{@link #as(String)}</li>
+	 * <li>{@link #as(ErrorCode)}</li>
 	 * </ul>
 	 * were called. Otherwise {@link IllegalStateException} is thrown.
 	 * 
@@ -142,19 +160,7 @@ public class AssemblerExceptionBuilder
 					"not enough variables provided to build (need to call at, in, and one of expected and or as)");
 		}
 
-		StringBuilder message = new StringBuilder(expected.map(String::length).orElse(0)
-				+ why.map(String::length).orElse(0));
-
-		message.append(expected.orElse(""));
-
-		if (expected.isPresent() && why.isPresent())
-		{
-			message.append(" as ");
-		}
-
-		message.append(why.orElse(""));
-
-		return new AssemblerException(lineNum, problematicString, message.toString());
+		return new AssemblerException(lineNum, column, endColumn, code, problematicString, expected, why);
 	}
 
 	/**
@@ -166,7 +172,7 @@ public class AssemblerExceptionBuilder
 	{
 		if (lineNum == null
 				|| problematicString == null
-				|| (!expected.isPresent() && !why.isPresent()))
+				|| (expected == null && why == null))
 		{
 			return false;
 		}
@@ -0,0 +1,39 @@
+
+package exceptions;
+
+/**
+ * The kinds of errors the assembler reports, each with the reason used as the
+ * message of the {@link AssemblerException}.
+ * 
+ * @author Boris
+ *
+ */
+public enum ErrorCode
+{
+	MISSING_SYMBOL("A instruciton needs a symbol or a number"),
+	MISSING_CHARS(null),
+	DEST_LENGTH("Expected 1 to 3 letter destination mnemonic"),
+	JUMP_LENGTH("Expected 3 letter jump mnemonic"),
+	CONSTANT_RANGE("Constant exceeded 15 bits (0 to 65535 inclusive)"),
+	SYMBOL_FIRST_CHAR("Symbol's first character mustbe a letter or a character from \"_.$:\""),
+	SYMBOL_REST_CHAR("Symbol's non first characters must be a letter, a character from \"_.$:\", or a digit"),
+	ILLEGAL_COMP("Illegal Computation mnemonic"),
+	ILLEGAL_DEST("Illegal Destination mnemonic"),
+	ILLEGAL_JUMP("Illegal Jump mnemonic"),
+	OTHER(null);
+
+	private final String reason;
+
+	private ErrorCode(String reason)
+	{
+		this.reason = reason;
+	}
+
+	/**
+	 * @return the reason of the error or null if it is given separately
+	 */
+	public String getReason()
+	{
+		return reason;
+	}
+}
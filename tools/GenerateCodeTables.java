@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Generates {@code CodeTables.java} from the translation properties in
+ * {@code codes/} so the default tables are compiled into {@link Code} instead
+ * of being read from the working directory on every start. The build runs it
+ * before compiling the assembler, into
+ * {@code build/generated/sources/codeTables/java}.
+ *
+ * @author Boris
+ *
+ */
+public class GenerateCodeTables
+{
+	private static final String[]	TABLES	= { "comp", "dest", "jump" };
+
+	/**
+	 * @param args
+	 *            - the directory of the properties and the java file to
+	 *            write.
+	 */
+	public static void main(String[] args)
+	{
+		if (args.length != 2)
+		{
+			System.err.println("usage: java GenerateCodeTables codes-directory CodeTables.java");
+			System.exit(3);
+		}
+
+		StringBuilder java = new StringBuilder();
+		java.append("// Generated by GenerateCodeTables from ").append(args[0].replace('\\', '/'))
+				.append("/*.properties, do not edit.\r\n\r\n");
+		java.append("/**\r\n");
+		java.append(" * The default translation tables of {@link Code}, generated from the\r\n");
+		java.append(" * translation properties so starting up reads no files.\r\n");
+		java.append(" * \r\n");
+		java.append(" * @author Boris\r\n");
+		java.append(" *\r\n");
+		java.append(" */\r\n");
+		java.append("final class CodeTables\r\n{\r\n");
+
+		try
+		{
+			for (String table : TABLES)
+			{
+				append(java, table, load(Paths.get(args[0], table + "Codes.properties").toString()));
+			}
+		}
+		catch (IOException | NumberFormatException e)
+		{
+			System.err.println("Could not read the translation codes: " + e.getMessage());
+			System.exit(1);
+		}
+
+		java.append("\tprivate CodeTables()\r\n\t{\r\n\t}\r\n}\r\n");
+
+		try (Writer out = Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.US_ASCII))
+		{
+			out.write(java.toString());
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not write output file " + args[1]);
+			System.exit(2);
+		}
+	}
+
+	private static Properties load(String path) throws IOException
+	{
+		Properties codes = new Properties();
+		try (InputStream in = Files.newInputStream(Paths.get(path)))
+		{
+			codes.load(in);
+		}
+		return codes;
+	}
+
+	/**
+	 * Appends the mnemonics and codes of one table as two parallel arrays,
+	 * ordered by code and then mnemonic so the output is stable.
+	 */
+	private static void append(StringBuilder java, String table, Properties codes)
+	{
+		List<String> mnemonics = new ArrayList<>(codes.stringPropertyNames());
+		mnemonics.sort(Comparator.comparingInt((String m) -> Integer.parseInt(codes.getProperty(m), 2))
+				.thenComparing(Comparator.naturalOrder()));
+
+		String name = table.toUpperCase();
+		java.append("\tstatic final String[]\t").append(name).append("_MNEMONICS\t= {");
+		for (int i = 0; i < mnemonics.size(); i++)
+		{
+			java.append(i % 8 == 0 ? "\r\n\t\t\t" : " ");
+			java.append('"').append(mnemonics.get(i).replace("\\", "\\\\").replace("\"", "\\\"")).append("\",");
+		}
+		java.append("\r\n\t};\r\n");
+
+		java.append("\tstatic final int[]\t\t").append(name).append("_CODES\t\t= {");
+		for (int i = 0; i < mnemonics.size(); i++)
+		{
+			String code = codes.getProperty(mnemonics.get(i)).trim();
+			java.append(i % 8 == 0 ? "\r\n\t\t\t" : " ");
+			java.append("0b").append(code).append(',');
+		}
+		java.append("\r\n\t};\r\n\r\n");
+	}
+}